@@ -0,0 +1,380 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.automerger;
+
+import static com.google.common.base.Strings.nullToEmpty;
+
+import com.google.common.cache.Cache;
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.extensions.common.RevisionInfo;
+import com.google.gerrit.extensions.events.ChangeAbandonedListener;
+import com.google.gerrit.extensions.events.ChangeDeletedListener;
+import com.google.gerrit.extensions.events.ChangeMergedListener;
+import com.google.gerrit.extensions.events.ChangeRestoredListener;
+import com.google.gerrit.extensions.events.RevisionCreatedListener;
+import com.google.gerrit.extensions.events.TopicEditedListener;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache of what the automerger resolved commits to: the topic of the change at a commit, and the
+ * original upstream change of a downstream merge.
+ *
+ * <p>Each resolution remembers the changes and commits it was worked out from, and the topics it
+ * searched, and is dropped as soon as an event touches any of them, so a stack merged to several
+ * branches, or through several hops, resolves each ancestor once. A topic is touched when a change
+ * is moved into or out of it.
+ *
+ * <p>Resolutions are indexed by what they depend on, so an event only visits the resolutions it
+ * makes stale. Index entries of resolutions the cache evicted on its own are dropped by the next
+ * event on what they depend on, or by the next prune.
+ */
+@Singleton
+class AncestryCache
+    implements ChangeAbandonedListener,
+        ChangeDeletedListener,
+        ChangeMergedListener,
+        ChangeRestoredListener,
+        RevisionCreatedListener,
+        TopicEditedListener {
+  static final String TOPIC_CACHE_NAME = "commit_topics";
+  static final String ORIGINAL_CACHE_NAME = "original_changes";
+
+  /** A resolved value, with the changes, commits and topics it depends on. */
+  static class Resolution {
+    final String topic;
+    final int originalChange;
+    final ImmutableSet<Integer> changes;
+    final ImmutableSet<String> commits;
+    final ImmutableSet<String> searchedTopics;
+
+    Resolution(
+        String topic,
+        int originalChange,
+        Set<Integer> changes,
+        Set<String> commits,
+        Set<String> searchedTopics) {
+      this.topic = topic;
+      this.originalChange = originalChange;
+      this.changes = ImmutableSet.copyOf(changes);
+      this.commits = ImmutableSet.copyOf(commits);
+      this.searchedTopics = ImmutableSet.copyOf(searchedTopics);
+    }
+
+    private boolean dependsOn(Invalidation invalidation) {
+      return changes.contains(invalidation.changeNumber)
+          || (invalidation.commit != null && commits.contains(invalidation.commit))
+          || !Collections.disjoint(searchedTopics, invalidation.topics);
+    }
+  }
+
+  /** An invalidation, kept for a while to find resolutions that went stale while being made. */
+  private static class Invalidation {
+    final long sequence;
+    final int changeNumber;
+    final String commit;
+    final ImmutableSet<String> topics;
+
+    Invalidation(long sequence, int changeNumber, String commit, Set<String> topics) {
+      this.sequence = sequence;
+      this.changeNumber = changeNumber;
+      this.commit = commit;
+      this.topics = ImmutableSet.copyOf(topics);
+    }
+  }
+
+  /** A cache along with the keys of its resolutions by what they depend on. */
+  private static class Index {
+    final Cache<String, Resolution> cache;
+    final Map<String, Resolution> indexed = new HashMap<>();
+    final Map<Integer, Set<String>> keysByChange = new HashMap<>();
+    final Map<String, Set<String>> keysByCommit = new HashMap<>();
+    final Map<String, Set<String>> keysByTopic = new HashMap<>();
+
+    Index(Cache<String, Resolution> cache) {
+      this.cache = cache;
+    }
+
+    void put(String key, Resolution resolution) {
+      remove(key);
+      cache.put(key, resolution);
+      indexed.put(key, resolution);
+      for (Integer changeNumber : resolution.changes) {
+        keysByChange.computeIfAbsent(changeNumber, k -> new HashSet<>()).add(key);
+      }
+      for (String commit : resolution.commits) {
+        keysByCommit.computeIfAbsent(commit, k -> new HashSet<>()).add(key);
+      }
+      for (String topic : resolution.searchedTopics) {
+        keysByTopic.computeIfAbsent(topic, k -> new HashSet<>()).add(key);
+      }
+      if (indexed.size() > 2 * cache.size() + MIN_PRUNE_SIZE) {
+        prune();
+      }
+    }
+
+    void invalidate(Invalidation invalidation) {
+      Set<String> keys = new HashSet<>();
+      keys.addAll(keysByChange.getOrDefault(invalidation.changeNumber, ImmutableSet.of()));
+      if (invalidation.commit != null) {
+        keys.addAll(keysByCommit.getOrDefault(invalidation.commit, ImmutableSet.of()));
+      }
+      for (String topic : invalidation.topics) {
+        keys.addAll(keysByTopic.getOrDefault(topic, ImmutableSet.of()));
+      }
+      for (String key : keys) {
+        remove(key);
+      }
+    }
+
+    private void remove(String key) {
+      Resolution resolution = indexed.remove(key);
+      if (resolution == null) {
+        return;
+      }
+      cache.invalidate(key);
+      for (Integer changeNumber : resolution.changes) {
+        unindex(keysByChange, changeNumber, key);
+      }
+      for (String commit : resolution.commits) {
+        unindex(keysByCommit, commit, key);
+      }
+      for (String topic : resolution.searchedTopics) {
+        unindex(keysByTopic, topic, key);
+      }
+    }
+
+    /** Drops the index entries of resolutions the cache evicted on its own. */
+    private void prune() {
+      Set<String> evicted = new HashSet<>();
+      for (Map.Entry<String, Resolution> entry : indexed.entrySet()) {
+        if (cache.getIfPresent(entry.getKey()) != entry.getValue()) {
+          evicted.add(entry.getKey());
+        }
+      }
+      for (String key : evicted) {
+        remove(key);
+      }
+    }
+
+    private static <K> void unindex(Map<K, Set<String>> keysByDep, K dep, String key) {
+      Set<String> keys = keysByDep.get(dep);
+      if (keys != null && keys.remove(key) && keys.isEmpty()) {
+        keysByDep.remove(dep);
+      }
+    }
+  }
+
+  // Resolutions that started this many invalidations ago are not trusted.
+  private static final int MAX_RECENT_INVALIDATIONS = 1024;
+  // Prune once the index holds this many more entries than twice the cache.
+  private static final int MIN_PRUNE_SIZE = 64;
+
+  private final Index topics;
+  private final Index originals;
+  private final Deque<Invalidation> recentInvalidations = new ArrayDeque<>();
+  private long sequence;
+
+  @Inject
+  AncestryCache(
+      @Named(TOPIC_CACHE_NAME) Cache<String, Resolution> topicCache,
+      @Named(ORIGINAL_CACHE_NAME) Cache<String, Resolution> originalCache) {
+    this.topics = new Index(topicCache);
+    this.originals = new Index(originalCache);
+  }
+
+  /**
+   * Returns the number of invalidations so far. Read it before resolving, and pass it to the put
+   * method, which drops the resolution if any invalidation since touched what it depends on.
+   *
+   * @return The current sequence number.
+   */
+  synchronized long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * Returns the cached topic of the change whose current revision is the given commit.
+   *
+   * @param commit The commit.
+   * @return The resolution, whose topic is null if there is no such change with a topic, or null if
+   *     the commit was not resolved yet.
+   */
+  Resolution getTopic(String commit) {
+    return topics.cache.getIfPresent(commit);
+  }
+
+  /**
+   * Caches the topic of the change whose current revision is the given commit.
+   *
+   * @param commit The commit.
+   * @param topic The topic, or null if there is no such change with a topic.
+   * @param changes All changes that have the commit.
+   * @param startSequence The sequence number from before the topic was resolved.
+   */
+  void putTopic(String commit, String topic, Set<Integer> changes, long startSequence) {
+    put(
+        topics,
+        commit,
+        new Resolution(topic, 0, changes, ImmutableSet.of(commit), ImmutableSet.of()),
+        startSequence);
+  }
+
+  /**
+   * Returns the cached original upstream change of the given revision of a change.
+   *
+   * @param changeNumber Number of the change.
+   * @param revision The revision.
+   * @return The resolution, or null if the revision was not resolved yet.
+   */
+  Resolution getOriginalChange(int changeNumber, String revision) {
+    return originals.cache.getIfPresent(originalKey(changeNumber, revision));
+  }
+
+  /**
+   * Caches the original upstream change of the given revision of a change.
+   *
+   * @param changeNumber Number of the change.
+   * @param revision The revision.
+   * @param originalChange Number of the original change, which may be the change itself.
+   * @param changes The changes on the way to the original change.
+   * @param commits The revisions and second parents on the way to the original change.
+   * @param searchedTopics The topics searched for changes at those second parents.
+   * @param startSequence The sequence number from before the original change was resolved.
+   */
+  void putOriginalChange(
+      int changeNumber,
+      String revision,
+      int originalChange,
+      Set<Integer> changes,
+      Set<String> commits,
+      Set<String> searchedTopics,
+      long startSequence) {
+    put(
+        originals,
+        originalKey(changeNumber, revision),
+        new Resolution(null, originalChange, changes, commits, searchedTopics),
+        startSequence);
+  }
+
+  private synchronized void put(
+      Index index, String key, Resolution resolution, long startSequence) {
+    if (!isStale(resolution, startSequence)) {
+      index.put(key, resolution);
+    }
+  }
+
+  private boolean isStale(Resolution resolution, long startSequence) {
+    if (sequence - startSequence > recentInvalidations.size()) {
+      // Resolving took long enough that we no longer know what changed since.
+      return true;
+    }
+    Iterator<Invalidation> it = recentInvalidations.descendingIterator();
+    while (it.hasNext()) {
+      Invalidation invalidation = it.next();
+      if (invalidation.sequence <= startSequence) {
+        break;
+      }
+      if (resolution.dependsOn(invalidation)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String originalKey(int changeNumber, String revision) {
+    return changeNumber + " " + revision;
+  }
+
+  @Override
+  public void onRevisionCreated(RevisionCreatedListener.Event event) {
+    invalidate(event.getChange(), event.getRevision());
+  }
+
+  @Override
+  public void onChangeRestored(ChangeRestoredListener.Event event) {
+    invalidate(event.getChange(), event.getRevision());
+  }
+
+  @Override
+  public void onChangeAbandoned(ChangeAbandonedListener.Event event) {
+    invalidate(event.getChange(), event.getRevision());
+  }
+
+  @Override
+  public void onChangeMerged(ChangeMergedListener.Event event) {
+    invalidate(event.getChange(), event.getRevision());
+  }
+
+  @Override
+  public void onChangeDeleted(ChangeDeletedListener.Event event) {
+    invalidate(event.getChange(), null);
+  }
+
+  @Override
+  public void onTopicEdited(TopicEditedListener.Event event) {
+    // The change left its old topic and joined the new one, so searches of either may differ now.
+    invalidate(
+        event.getChange()._number,
+        event.getChange().currentRevision,
+        ImmutableSet.of(nullToEmpty(event.getOldTopic()), nullToEmpty(event.getChange().topic)));
+  }
+
+  private void invalidate(ChangeInfo change, RevisionInfo revision) {
+    String commit = change.currentRevision;
+    if (revision != null && revision.commit != null && revision.commit.commit != null) {
+      commit = revision.commit.commit;
+    }
+    invalidate(change._number, commit);
+  }
+
+  /**
+   * Drops every resolution that depends on the given change or commit.
+   *
+   * @param changeNumber Number of the change.
+   * @param commit The current revision of the change, or null if it is not known.
+   */
+  void invalidate(int changeNumber, String commit) {
+    invalidate(changeNumber, commit, ImmutableSet.of());
+  }
+
+  /**
+   * Drops every resolution that depends on the given change or commit, or searched any of the
+   * given topics.
+   *
+   * @param changeNumber Number of the change.
+   * @param commit The current revision of the change, or null if it is not known.
+   * @param editedTopics Topics the change was moved into or out of.
+   */
+  synchronized void invalidate(int changeNumber, String commit, Set<String> editedTopics) {
+    Invalidation invalidation = new Invalidation(++sequence, changeNumber, commit, editedTopics);
+    recentInvalidations.addLast(invalidation);
+    if (recentInvalidations.size() > MAX_RECENT_INVALIDATIONS) {
+      recentInvalidations.removeFirst();
+    }
+    topics.invalidate(invalidation);
+    originals.invalidate(invalidation);
+  }
+}
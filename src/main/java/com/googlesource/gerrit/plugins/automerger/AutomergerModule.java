@@ -17,17 +17,25 @@ package com.googlesource.gerrit.plugins.automerger;
 import static com.google.gerrit.server.change.RevisionResource.REVISION_KIND;
 import static com.google.gerrit.server.project.BranchResource.BRANCH_KIND;
 
+import com.google.gerrit.extensions.annotations.Exports;
 import com.google.gerrit.extensions.events.ChangeAbandonedListener;
+import com.google.gerrit.extensions.events.ChangeDeletedListener;
+import com.google.gerrit.extensions.events.ChangeMergedListener;
 import com.google.gerrit.extensions.events.ChangeRestoredListener;
 import com.google.gerrit.extensions.events.CommentAddedListener;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
 import com.google.gerrit.extensions.events.RevisionCreatedListener;
 import com.google.gerrit.extensions.events.TopicEditedListener;
 import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.gerrit.extensions.restapi.RestApiModule;
 import com.google.gerrit.extensions.webui.JavaScriptPlugin;
 import com.google.gerrit.extensions.webui.WebUiPlugin;
+import com.google.gerrit.lifecycle.LifecycleModule;
+import com.google.gerrit.server.cache.CacheModule;
 import com.google.gerrit.server.git.validators.MergeValidationListener;
+import com.google.gerrit.server.query.change.ChangeQueryBuilder.ChangeOperatorFactory;
 import com.google.inject.AbstractModule;
+import org.eclipse.jgit.lib.ObjectId;
 
 /** Module to bind listeners, plugins, and other modules. */
 public class AutomergerModule extends AbstractModule {
@@ -39,7 +47,40 @@ public class AutomergerModule extends AbstractModule {
     DynamicSet.bind(binder(), ChangeRestoredListener.class).to(DownstreamCreator.class);
     DynamicSet.bind(binder(), RevisionCreatedListener.class).to(DownstreamCreator.class);
     DynamicSet.bind(binder(), TopicEditedListener.class).to(DownstreamCreator.class);
+    DynamicSet.bind(binder(), ChangeAbandonedListener.class).to(DownstreamIndex.class);
+    DynamicSet.bind(binder(), ChangeDeletedListener.class).to(DownstreamIndex.class);
+    DynamicSet.bind(binder(), ChangeMergedListener.class).to(DownstreamIndex.class);
+    DynamicSet.bind(binder(), ChangeRestoredListener.class).to(DownstreamIndex.class);
+    DynamicSet.bind(binder(), RevisionCreatedListener.class).to(DownstreamIndex.class);
+    DynamicSet.bind(binder(), TopicEditedListener.class).to(DownstreamIndex.class);
+    DynamicSet.bind(binder(), ChangeAbandonedListener.class).to(AncestryCache.class);
+    DynamicSet.bind(binder(), ChangeDeletedListener.class).to(AncestryCache.class);
+    DynamicSet.bind(binder(), ChangeMergedListener.class).to(AncestryCache.class);
+    DynamicSet.bind(binder(), ChangeRestoredListener.class).to(AncestryCache.class);
+    DynamicSet.bind(binder(), RevisionCreatedListener.class).to(AncestryCache.class);
+    DynamicSet.bind(binder(), TopicEditedListener.class).to(AncestryCache.class);
     DynamicSet.bind(binder(), MergeValidationListener.class).to(MergeValidator.class);
+    bind(ChangeOperatorFactory.class)
+        .annotatedWith(Exports.named(ParentOperator.NAME))
+        .to(ParentOperator.class);
+    DynamicSet.bind(binder(), GitReferenceUpdatedListener.class).to(ManifestCache.class);
+    install(
+        new LifecycleModule() {
+          @Override
+          protected void configure() {
+            listener().to(DownstreamWorkQueue.class);
+          }
+        });
+    install(
+        new CacheModule() {
+          @Override
+          protected void configure() {
+            cache(ManifestCache.CACHE_NAME, ManifestCache.Key.class, ProjectSet.class);
+            cache(ManifestCache.FRAGMENT_CACHE_NAME, ObjectId.class, ManifestFragment.class);
+            cache(AncestryCache.TOPIC_CACHE_NAME, String.class, AncestryCache.Resolution.class);
+            cache(AncestryCache.ORIGINAL_CACHE_NAME, String.class, AncestryCache.Resolution.class);
+          }
+        });
     install(
         new RestApiModule() {
           @Override
@@ -47,6 +88,7 @@ public class AutomergerModule extends AbstractModule {
             post(REVISION_KIND, "automerge-change").to(AutomergeChangeAction.class);
             post(REVISION_KIND, "config-downstream").to(ConfigDownstreamAction.class);
             get(BRANCH_KIND, "all-config-downstream").to(AllConfigDownstreamAction.class);
+            get(BRANCH_KIND, "all-config-upstream").to(AllConfigUpstreamAction.class);
           }
         });
     DynamicSet.bind(binder(), WebUiPlugin.class).toInstance(new JavaScriptPlugin("automerger.js"));
@@ -0,0 +1,211 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.automerger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.gerrit.exceptions.StorageException;
+import com.google.gerrit.index.query.Predicate;
+import com.google.gerrit.index.query.QueryParseException;
+import com.google.gerrit.index.query.QueryResult;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.PatchSet;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.index.change.ChangeField;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.server.query.change.ChangeQueryProcessor;
+import com.google.gerrit.server.query.change.ChangeStatusPredicate;
+import com.google.gerrit.server.query.change.CommitPredicate;
+import com.google.gerrit.server.query.change.ExactTopicPredicate;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Looks changes up through the change index, loading only what a {@link ChangeSummary} holds.
+ *
+ * <p>Unlike a REST query with all revisions and the current commit, this reads nothing but the
+ * change and its patch sets from the index, and the headers of the current commits from the
+ * repositories, one walk per project. Topics are read a page of {@code global.topicPageSize}
+ * changes at a time, so callers can stop once they find what they are looking for.
+ *
+ * <p>Pages are read by offset, from an index sorted by when changes were last updated. A change in
+ * the topic that is updated between two pages shifts the ones after it, so a read spanning several
+ * pages can skip a change or see it twice. Only a topic that fits on one page is read in a single
+ * query, and so only then do the changes read cover the whole topic.
+ */
+@Singleton
+class ChangeLookup {
+  private static final Logger log = LoggerFactory.getLogger(ChangeLookup.class);
+  private static final int DEFAULT_PAGE_SIZE = 100;
+  private static final ImmutableSet<String> FIELDS =
+      ImmutableSet.of(ChangeField.CHANGE.getName(), ChangeField.PATCH_SET.getName());
+
+  /** Some of the open changes in a topic. */
+  static class Page {
+    final List<ChangeSummary> changes;
+    final boolean more;
+
+    Page(List<ChangeSummary> changes, boolean more) {
+      this.changes = changes;
+      this.more = more;
+    }
+  }
+
+  private final Provider<ChangeQueryProcessor> queryProcessorProvider;
+  private final GitRepositoryManager repoManager;
+  private final ConfigLoader config;
+
+  @Inject
+  ChangeLookup(
+      Provider<ChangeQueryProcessor> queryProcessorProvider,
+      GitRepositoryManager repoManager,
+      ConfigLoader config) {
+    this.queryProcessorProvider = queryProcessorProvider;
+    this.repoManager = repoManager;
+    this.config = config;
+  }
+
+  /**
+   * Returns a page of the open changes in the given topic that the current user can see.
+   *
+   * @param topic The topic.
+   * @param start Number of changes to skip, i.e. how many the previous pages held.
+   * @return The changes, in index order, and whether there are more.
+   * @throws StorageException
+   */
+  Page getOpenChangesInTopic(String topic, int start) {
+    int pageSize;
+    try {
+      pageSize = config.getTopicPageSize();
+    } catch (ConfigInvalidException e) {
+      log.warn("Failed to read the automerger topic page size, using {}", DEFAULT_PAGE_SIZE, e);
+      pageSize = DEFAULT_PAGE_SIZE;
+    }
+    QueryResult<ChangeData> result =
+        query(
+            topic,
+            Predicate.and(new ExactTopicPredicate(topic), ChangeStatusPredicate.open()),
+            start,
+            pageSize);
+    return new Page(summarize(topic, result.entities()), result.more());
+  }
+
+  /**
+   * Returns the open changes in the given topic whose current revision is the given one, that the
+   * current user can see.
+   *
+   * <p>Unlike a search through the pages of the topic, this is a single query, so a change it does
+   * not return is not in the topic at that revision.
+   *
+   * @param topic The topic.
+   * @param revision The current revision.
+   * @return The changes, in index order.
+   * @throws StorageException
+   */
+  List<ChangeSummary> getOpenChangesAtRevision(String topic, String revision) {
+    QueryResult<ChangeData> result =
+        query(
+            topic,
+            Predicate.and(
+                new ExactTopicPredicate(topic),
+                ChangeStatusPredicate.open(),
+                new CommitPredicate(revision)),
+            0,
+            DEFAULT_PAGE_SIZE);
+    List<ChangeSummary> changes = new ArrayList<>();
+    // The query also matches changes that had the revision as an earlier patch set.
+    for (ChangeSummary change : summarize(topic, result.entities())) {
+      if (revision.equals(change.getCurrentRevision())) {
+        changes.add(change);
+      }
+    }
+    return changes;
+  }
+
+  private QueryResult<ChangeData> query(
+      String topic, Predicate<ChangeData> predicate, int start, int limit) {
+    try {
+      return queryProcessorProvider
+          .get()
+          .enforceVisibility(true)
+          .setStart(start)
+          .setUserProvidedLimit(limit)
+          .setRequestedFields(FIELDS)
+          .query(predicate);
+    } catch (QueryParseException e) {
+      throw new StorageException("Failed to query changes in topic " + topic, e);
+    }
+  }
+
+  private List<ChangeSummary> summarize(String topic, List<ChangeData> changes) {
+    ListMultimap<Project.NameKey, ChangeData> byProject = LinkedListMultimap.create();
+    for (ChangeData cd : changes) {
+      byProject.put(cd.project(), cd);
+    }
+    Map<Change.Id, ImmutableList<String>> parents = new HashMap<>();
+    for (Project.NameKey project : byProject.keySet()) {
+      try (Repository repo = repoManager.openRepository(project);
+          RevWalk rw = new RevWalk(repo)) {
+        for (ChangeData cd : byProject.get(project)) {
+          parents.put(cd.getId(), getParents(rw, cd.currentPatchSet()));
+        }
+      } catch (IOException e) {
+        throw new StorageException("Failed to read changes in topic " + topic, e);
+      }
+    }
+
+    List<ChangeSummary> summaries = new ArrayList<>(changes.size());
+    for (ChangeData cd : changes) {
+      Change change = cd.change();
+      PatchSet ps = cd.currentPatchSet();
+      summaries.add(
+          new ChangeSummary(
+              change.getChangeId(),
+              change.getDest().shortName(),
+              change.getTopic(),
+              change.getStatus().asChangeStatus(),
+              ps != null ? ps.commitId().name() : null,
+              parents.get(cd.getId())));
+    }
+    return summaries;
+  }
+
+  private static ImmutableList<String> getParents(RevWalk rw, PatchSet ps) throws IOException {
+    if (ps == null) {
+      return ImmutableList.of();
+    }
+    RevCommit commit = rw.parseCommit(ps.commitId());
+    ImmutableList.Builder<String> parents = ImmutableList.builder();
+    for (RevCommit parent : commit.getParents()) {
+      parents.add(parent.name());
+    }
+    return parents.build();
+  }
+}
@@ -0,0 +1,115 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.automerger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.extensions.client.ChangeStatus;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.extensions.common.CommitInfo;
+import com.google.gerrit.extensions.common.RevisionInfo;
+import java.util.List;
+
+/** The few fields of a change that the automerger looks changes up by. */
+class ChangeSummary {
+  private final int changeNumber;
+  private final String branch;
+  private final String topic;
+  private final ChangeStatus status;
+  private final String currentRevision;
+  private final ImmutableList<String> parents;
+
+  ChangeSummary(
+      int changeNumber,
+      String branch,
+      String topic,
+      ChangeStatus status,
+      String currentRevision,
+      List<String> parents) {
+    this.changeNumber = changeNumber;
+    this.branch = branch;
+    this.topic = topic;
+    this.status = status;
+    this.currentRevision = currentRevision;
+    this.parents = ImmutableList.copyOf(parents);
+  }
+
+  /**
+   * Summarizes a change returned by the REST API or an event.
+   *
+   * @param change The change.
+   * @param revision The current revision of the change, or null if it is not known. Its parents
+   *     are only known if it has its commit.
+   * @return The summary.
+   */
+  static ChangeSummary of(ChangeInfo change, RevisionInfo revision) {
+    String currentRevision = change.currentRevision;
+    ImmutableList.Builder<String> parents = ImmutableList.builder();
+    if (revision != null && revision.commit != null) {
+      if (revision.commit.commit != null) {
+        currentRevision = revision.commit.commit;
+      }
+      if (revision.commit.parents != null) {
+        for (CommitInfo parent : revision.commit.parents) {
+          parents.add(parent.commit);
+        }
+      }
+    }
+    return new ChangeSummary(
+        change._number,
+        change.branch,
+        change.topic,
+        change.status,
+        currentRevision,
+        parents.build());
+  }
+
+  int getChangeNumber() {
+    return changeNumber;
+  }
+
+  String getBranch() {
+    return branch;
+  }
+
+  String getTopic() {
+    return topic;
+  }
+
+  ChangeStatus getStatus() {
+    return status;
+  }
+
+  String getCurrentRevision() {
+    return currentRevision;
+  }
+
+  /**
+   * Returns the parents of the current revision.
+   *
+   * @return The parents, or an empty list if they are not known.
+   */
+  ImmutableList<String> getParents() {
+    return parents;
+  }
+
+  /**
+   * Returns the revision a merge change merges.
+   *
+   * @return The second parent of the current revision, or null if it is not a merge.
+   */
+  String getSecondParent() {
+    return parents.size() > 1 ? parents.get(1) : null;
+  }
+}
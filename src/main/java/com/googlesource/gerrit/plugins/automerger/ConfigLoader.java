@@ -14,31 +14,33 @@
 
 package com.googlesource.gerrit.plugins.automerger;
 
-import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
-import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.gerrit.extensions.annotations.PluginName;
-import com.google.gerrit.extensions.api.GerritApi;
-import com.google.gerrit.extensions.restapi.BinaryResult;
-import com.google.gerrit.extensions.restapi.ResourceNotFoundException;
 import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.MetricMaker;
 import com.google.gerrit.reviewdb.client.Account;
 import com.google.gerrit.server.CurrentUser;
 import com.google.gerrit.server.config.AllProjectsName;
 import com.google.gerrit.server.config.CanonicalWebUrl;
 import com.google.gerrit.server.config.PluginConfigFactory;
-import com.google.gerrit.server.project.NoSuchProjectException;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.project.ProjectState;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
-import com.google.re2j.Pattern;
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import org.eclipse.jgit.errors.ConfigInvalidException;
-import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,47 +48,157 @@ import org.slf4j.LoggerFactory;
 @Singleton
 public class ConfigLoader {
   private static final Logger log = LoggerFactory.getLogger(ConfigLoader.class);
-  private static final String BRANCH_DELIMITER = ":";
-  private static final String DEFAULT_CONFLICT_MESSAGE = "Merge conflict found on ${branch}";
+  private static final Splitter PAIR_SPLITTER = Splitter.on(ConfigSnapshot.BRANCH_DELIMITER);
 
-  private final GerritApi gApi;
+  private final ManifestCache manifestCache;
+  private final ProjectDictionary dictionary;
   private final String pluginName;
   private final String canonicalWebUrl;
   private final AllProjectsName allProjectsName;
   private final PluginConfigFactory cfgFactory;
+  private final ProjectCache projectCache;
   private final Provider<CurrentUser> user;
 
+  // Replaced wholesale whenever the All-Projects config revision changes.
+  private volatile ConfigSnapshot snapshot;
+  // Replaced whenever the snapshot or the manifests change.
+  private volatile BranchIndex branchIndex;
+  private final Object branchIndexLock = new Object();
+
+  // Branches related to each (project, branch), in both directions and both immediate and
+  // transitive, for one config snapshot and manifest generation. Filled in lazily.
+  private static class BranchIndex {
+    final ConfigSnapshot snapshot;
+    final long manifestGeneration;
+    // Projects in the manifest of each branch, as read by this index.
+    final ConcurrentMap<String, ProjectSet> manifests = new ConcurrentHashMap<>();
+    // Projects in scope by "fromBranch:toBranch".
+    final ConcurrentMap<String, ProjectSet> scopes = new ConcurrentHashMap<>();
+    final ConcurrentMap<String, Map<String, ImmutableSet<String>>> downstream =
+        new ConcurrentHashMap<>();
+    final ConcurrentMap<String, Map<String, ImmutableSet<String>>> allDownstream =
+        new ConcurrentHashMap<>();
+    final ConcurrentMap<String, Map<String, ImmutableSet<String>>> upstream =
+        new ConcurrentHashMap<>();
+    final ConcurrentMap<String, Map<String, ImmutableSet<String>>> allUpstream =
+        new ConcurrentHashMap<>();
+
+    BranchIndex(ConfigSnapshot snapshot, long manifestGeneration) {
+      this.snapshot = snapshot;
+      this.manifestGeneration = manifestGeneration;
+    }
+
+    Map<String, ImmutableSet<String>> forProject(
+        ConcurrentMap<String, Map<String, ImmutableSet<String>>> memo, String project) {
+      return memo.computeIfAbsent(project, k -> new ConcurrentHashMap<>());
+    }
+
+    long estimateHeapBytes() {
+      long bytes = 0;
+      for (ProjectSet scope : scopes.values()) {
+        bytes += 64 + scope.estimateHeapBytes();
+      }
+      // Manifests are shared with the manifest cache, so only the map entries count.
+      bytes += 64L * manifests.size();
+      for (ConcurrentMap<String, Map<String, ImmutableSet<String>>> memo :
+          ImmutableList.of(downstream, allDownstream, upstream, allUpstream)) {
+        for (Map<String, ImmutableSet<String>> byBranch : memo.values()) {
+          bytes += 128;
+          for (ImmutableSet<String> branches : byBranch.values()) {
+            bytes += 64 + 16L * branches.size();
+          }
+        }
+      }
+      return bytes;
+    }
+  }
+
   /**
    * Class to handle getting information from the config.
    *
-   * @param gApi API to access gerrit information.
+   * @param manifestCache Cache of the projects in each manifest.
+   * @param dictionary Ids of the projects in config and manifests.
    * @param allProjectsName The name of the top-level project.
    * @param pluginName The name of the plugin we are running.
    * @param cfgFactory Factory to generate the plugin config.
+   * @param projectCache Cache used to detect new revisions of the config.
+   * @param metricMaker Used to report the heap used by the parsed config.
    */
   @Inject
   public ConfigLoader(
-      GerritApi gApi,
+      ManifestCache manifestCache,
+      ProjectDictionary dictionary,
       AllProjectsName allProjectsName,
       @PluginName String pluginName,
       @CanonicalWebUrl String canonicalWebUrl,
       PluginConfigFactory cfgFactory,
-      Provider<CurrentUser> user) {
-    this.gApi = gApi;
+      ProjectCache projectCache,
+      Provider<CurrentUser> user,
+      MetricMaker metricMaker) {
+    this.manifestCache = manifestCache;
+    this.dictionary = dictionary;
     this.canonicalWebUrl = canonicalWebUrl;
     this.pluginName = pluginName;
     this.cfgFactory = cfgFactory;
+    this.projectCache = projectCache;
     this.allProjectsName = allProjectsName;
     this.user = user;
+    metricMaker.newCallbackMetric(
+        "config/heap_bytes",
+        Long.class,
+        new Description("Estimated heap used by the parsed config, scopes and project ids")
+            .setGauge()
+            .setUnit(Units.BYTES),
+        this::estimateHeapBytes);
   }
 
-  private Config getConfig() throws ConfigInvalidException {
+  /**
+   * Estimates the heap used by the current config snapshot, the scopes and branch relations
+   * computed from it, and the project id dictionary.
+   *
+   * @return The estimated size in bytes.
+   */
+  public long estimateHeapBytes() {
+    long bytes = dictionary.estimateHeapBytes();
+    ConfigSnapshot currentSnapshot = snapshot;
+    if (currentSnapshot != null) {
+      bytes += currentSnapshot.estimateHeapBytes();
+    }
+    BranchIndex currentIndex = branchIndex;
+    if (currentIndex != null && currentIndex.snapshot == currentSnapshot) {
+      bytes += currentIndex.estimateHeapBytes();
+    }
+    return bytes;
+  }
+
+  // Returns the snapshot for the current config revision, parsing the config only if it changed.
+  private ConfigSnapshot getSnapshot() throws ConfigInvalidException {
+    ProjectState allProjects;
     try {
-      return cfgFactory.getProjectPluginConfig(allProjectsName, pluginName);
-    } catch (NoSuchProjectException e) {
+      allProjects = projectCache.checkedGet(allProjectsName);
+    } catch (IOException e) {
+      throw new ConfigInvalidException("Failed to load " + allProjectsName.get(), e);
+    }
+    if (allProjects == null) {
       throw new ConfigInvalidException(
           "Config invalid because " + allProjectsName.get() + " does not exist!");
     }
+    ObjectId revision = allProjects.getConfig().getRevision();
+    ConfigSnapshot current = snapshot;
+    if (current == null || !current.isRevision(revision)) {
+      current =
+          ConfigSnapshot.parse(
+              revision,
+              cfgFactory.getProjectPluginConfig(allProjects, pluginName),
+              pluginName,
+              dictionary);
+      snapshot = current;
+      log.debug(
+          "Loaded automerger config at revision {} ({} bytes)",
+          revision,
+          current.estimateHeapBytes());
+    }
+    return current;
   }
 
   /**
@@ -101,28 +213,16 @@ public class ConfigLoader {
    */
   public boolean isSkipMerge(String fromBranch, String toBranch, String commitMessage)
       throws ConfigInvalidException {
-    Pattern alwaysBlankMergePattern = getConfigPattern("alwaysBlankMerge");
-    if (alwaysBlankMergePattern.matches(commitMessage)) {
-      return true;
-    }
-
-    Pattern blankMergePattern = getConfigPattern("blankMerge");
-    // If regex matches blank_merge (DO NOT MERGE), skip iff merge_all is false
-    if (blankMergePattern.matches(commitMessage)) {
-      return !getMergeAll(fromBranch, toBranch);
+    ConfigSnapshot snapshot = getSnapshot();
+    switch (snapshot.getSkipRules(fromBranch, toBranch).match(commitMessage)) {
+      case ALWAYS_BLANK_MERGE:
+        return true;
+      case BLANK_MERGE:
+        // If regex matches blank_merge (DO NOT MERGE), skip iff merge_all is false
+        return !snapshot.getBranchPair(fromBranch, toBranch).mergeAll;
+      default:
+        return false;
     }
-    return false;
-  }
-
-  private Pattern getConfigPattern(String key) throws ConfigInvalidException {
-    String[] patternList = getConfig().getStringList("global", null, key);
-    Set<String> mergeStrings = new HashSet<>(Arrays.asList(patternList));
-    return Pattern.compile(Joiner.on("|").join(mergeStrings), Pattern.DOTALL);
-  }
-
-  private boolean getMergeAll(String fromBranch, String toBranch) throws ConfigInvalidException {
-    return getConfig()
-        .getBoolean("automerger", fromBranch + BRANCH_DELIMITER + toBranch, "mergeAll", false);
   }
 
   /**
@@ -132,8 +232,7 @@ public class ConfigLoader {
    * @throws ConfigInvalidException
    */
   public String getAutomergeLabel() throws ConfigInvalidException {
-    String automergeLabel = getConfig().getString("global", null, "automergeLabel");
-    return automergeLabel != null ? automergeLabel : "Code-Review";
+    return getSnapshot().getAutomergeLabel();
   }
 
   /**
@@ -146,7 +245,7 @@ public class ConfigLoader {
    * @throws ConfigInvalidException
    */
   public String getHostName() throws ConfigInvalidException {
-    String hostName = getConfig().getString("global", null, "hostName");
+    String hostName = getSnapshot().getHostName();
     return hostName != null ? hostName : canonicalWebUrl;
   }
 
@@ -157,11 +256,7 @@ public class ConfigLoader {
    * @throws ConfigInvalidException
    */
   public String getConflictMessage() throws ConfigInvalidException {
-    String conflictMessage = getConfig().getString("global", null, "conflictMessage");
-    if (Strings.isNullOrEmpty(conflictMessage)) {
-      conflictMessage = DEFAULT_CONFLICT_MESSAGE;
-    }
-    return conflictMessage;
+    return getSnapshot().getConflictMessage();
   }
 
   /**
@@ -171,11 +266,7 @@ public class ConfigLoader {
    * @throws ConfigInvalidException
    */
   public String getManifestConflictMessage() throws ConfigInvalidException {
-    String conflictMessage = getConfig().getString("global", null, "manifestConflictMessage");
-    if (Strings.isNullOrEmpty(conflictMessage)) {
-      conflictMessage = getConflictMessage();
-    }
-    return conflictMessage;
+    return getSnapshot().getManifestConflictMessage();
   }
 
   /**
@@ -190,9 +281,54 @@ public class ConfigLoader {
    */
   public Set<String> getProjectsInScope(String fromBranch, String toBranch)
       throws RestApiException, IOException, ConfigInvalidException {
+    ConfigSnapshot snapshot = getSnapshot();
+    return getProjectsInScope(
+            snapshot,
+            fromBranch,
+            toBranch,
+            b ->
+                manifestCache.getProjects(
+                    getManifestProject(snapshot), getManifestFile(snapshot), b))
+        .toNames();
+  }
+
+  private ProjectSet getProjectsInScope(BranchIndex index, String fromBranch, String toBranch)
+      throws RestApiException, IOException, ConfigInvalidException {
+    String pairKey = fromBranch + ConfigSnapshot.BRANCH_DELIMITER + toBranch;
+    ProjectSet projectSet = index.scopes.get(pairKey);
+    if (projectSet == null) {
+      projectSet =
+          getProjectsInScope(index.snapshot, fromBranch, toBranch, b -> getManifest(index, b));
+      index.scopes.put(pairKey, projectSet);
+    }
+    return projectSet;
+  }
+
+  // Reads each manifest once per index, so that all scopes of an index agree on its contents.
+  private ProjectSet getManifest(BranchIndex index, String branch)
+      throws RestApiException, IOException, ConfigInvalidException {
+    ProjectSet projects = index.manifests.get(branch);
+    if (projects == null) {
+      projects =
+          manifestCache.getProjects(
+              getManifestProject(index.snapshot), getManifestFile(index.snapshot), branch);
+      index.manifests.put(branch, projects);
+    }
+    return projects;
+  }
+
+  private interface ManifestSource {
+    ProjectSet get(String branch) throws RestApiException, IOException, ConfigInvalidException;
+  }
+
+  private ProjectSet getProjectsInScope(
+      ConfigSnapshot snapshot, String fromBranch, String toBranch, ManifestSource manifests)
+      throws RestApiException, IOException, ConfigInvalidException {
     try {
-      Set<String> projectSet = getManifestProjects(fromBranch, toBranch);
-      projectSet = applyConfig(fromBranch, toBranch, projectSet);
+      ConfigSnapshot.BranchPair branchPair = snapshot.getBranchPair(fromBranch, toBranch);
+      ProjectSet projectSet =
+          getManifestProjects(snapshot, branchPair, fromBranch, toBranch, manifests);
+      projectSet = applyConfig(branchPair, projectSet);
 
       log.debug("Project set for {} to {} is {}", fromBranch, toBranch, projectSet);
       return projectSet;
@@ -217,27 +353,49 @@ public class ConfigLoader {
     if (toBranch == null) {
       throw new IllegalArgumentException("toBranch cannot be null");
     }
-    Set<String> upstreamBranches = new HashSet<>();
-    // List all subsections of automerger, split by :
-    Set<String> subsections = getConfig().getSubsections(pluginName);
-    for (String subsection : subsections) {
-      // Subsections are of the form "fromBranch:toBranch"
-      List<String> branchPair =
-          Splitter.on(BRANCH_DELIMITER).trimResults().omitEmptyStrings().splitToList(subsection);
-      if (branchPair.size() != 2) {
-        throw new ConfigInvalidException("Automerger config branch pair malformed: " + subsection);
-      }
-      if (toBranch.equals(branchPair.get(1))) {
-        // If toBranch matches, check if project is in both their manifests
-        Set<String> projectsInScope = getProjectsInScope(branchPair.get(0), branchPair.get(1));
-        if (projectsInScope.contains(project)) {
-          upstreamBranches.add(branchPair.get(0));
-        }
+    return getUpstreamBranches(getBranchIndex(), toBranch, project);
+  }
+
+  private ImmutableSet<String> getUpstreamBranches(
+      BranchIndex index, String toBranch, String project)
+      throws ConfigInvalidException, RestApiException, IOException {
+    Map<String, ImmutableSet<String>> memo = index.forProject(index.upstream, project);
+    ImmutableSet<String> upstreamBranches = memo.get(toBranch);
+    if (upstreamBranches != null) {
+      return upstreamBranches;
+    }
+    ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+    for (String fromBranch : index.snapshot.getUpstreamBranches(toBranch)) {
+      // Check if project is in both their manifests
+      ProjectSet projectsInScope = getProjectsInScope(index, fromBranch, toBranch);
+      if (projectsInScope.contains(project)) {
+        builder.add(fromBranch);
       }
     }
+    upstreamBranches = builder.build();
+    memo.put(toBranch, upstreamBranches);
     return upstreamBranches;
   }
 
+  /**
+   * Gets all branches upstream of the given branch and project, transitively.
+   *
+   * @param toBranch The downstream branch we would merge to.
+   * @param project The project we are merging.
+   * @return The branches that feed into the given branch for the given project.
+   * @throws RestApiException
+   * @throws IOException
+   * @throws ConfigInvalidException
+   */
+  public Set<String> getAllUpstreamBranches(String toBranch, String project)
+      throws ConfigInvalidException, RestApiException, IOException {
+    BranchIndex index = getBranchIndex();
+    return getClosure(
+        index.forProject(index.allUpstream, project),
+        toBranch,
+        b -> getUpstreamBranches(index, b, project));
+  }
+
   /**
    * Gets the downstream branches of the given branch and project.
    *
@@ -250,63 +408,241 @@ public class ConfigLoader {
    */
   public Set<String> getDownstreamBranches(String fromBranch, String project)
       throws RestApiException, IOException, ConfigInvalidException {
-    Set<String> downstreamBranches = new HashSet<>();
-    // List all subsections of automerger, split by :
-    Set<String> subsections = getConfig().getSubsections(pluginName);
-    for (String subsection : subsections) {
-      // Subsections are of the form "fromBranch:toBranch"
-      String[] branchPair = subsection.split(Pattern.quote(BRANCH_DELIMITER));
-      if (branchPair.length != 2) {
-        throw new ConfigInvalidException("Automerger config branch pair malformed: " + subsection);
-      }
-      if (fromBranch.equals(branchPair[0])) {
-        // If fromBranches match, check if project is in both their manifests
-        Set<String> projectsInScope = getProjectsInScope(branchPair[0], branchPair[1]);
-        if (projectsInScope.contains(project)) {
-          downstreamBranches.add(branchPair[1]);
-        }
+    return getDownstreamBranches(getBranchIndex(), fromBranch, project);
+  }
+
+  private ImmutableSet<String> getDownstreamBranches(
+      BranchIndex index, String fromBranch, String project)
+      throws RestApiException, IOException, ConfigInvalidException {
+    Map<String, ImmutableSet<String>> memo = index.forProject(index.downstream, project);
+    ImmutableSet<String> downstreamBranches = memo.get(fromBranch);
+    if (downstreamBranches != null) {
+      return downstreamBranches;
+    }
+    ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+    for (String toBranch : index.snapshot.getDownstreamBranches(fromBranch)) {
+      // Check if project is in both their manifests
+      ProjectSet projectsInScope = getProjectsInScope(index, fromBranch, toBranch);
+      if (projectsInScope.contains(project)) {
+        builder.add(toBranch);
       }
     }
+    downstreamBranches = builder.build();
+    memo.put(fromBranch, downstreamBranches);
     return downstreamBranches;
   }
 
+  /**
+   * Gets all branches downstream of the given branch and project, transitively.
+   *
+   * <p>Results are remembered until the config or one of the manifests changes, so branches shared
+   * by several paths (e.g. both sides of a diamond) are only expanded once.
+   *
+   * @param branch The branch we are merging from.
+   * @param project The project we are merging.
+   * @return The branches downstream of the given branch for the given project.
+   * @throws RestApiException
+   * @throws IOException
+   * @throws ConfigInvalidException
+   */
   public Set<String> getAllDownstreamBranches(String branch, String project)
       throws RestApiException, IOException, ConfigInvalidException {
-    Set<String> downstreamBranches = new HashSet<>();
-    Set<String> immediateDownstreams = getDownstreamBranches(branch, project);
-    downstreamBranches.addAll(immediateDownstreams);
-    for (String immediateDownstream : immediateDownstreams) {
-      downstreamBranches.addAll(getAllDownstreamBranches(immediateDownstream, project));
+    BranchIndex index = getBranchIndex();
+    return getClosure(
+        index.forProject(index.allDownstream, project),
+        branch,
+        b -> getDownstreamBranches(index, b, project));
+  }
+
+  private BranchIndex getBranchIndex() throws ConfigInvalidException {
+    ConfigSnapshot snapshot = getSnapshot();
+    snapshot.checkBranchPairs();
+    // Read the generation before any manifest so that a concurrent update is never missed.
+    long manifestGeneration = manifestCache.getGeneration();
+    BranchIndex current = branchIndex;
+    if (current != null
+        && current.snapshot == snapshot
+        && current.manifestGeneration == manifestGeneration) {
+      return current;
     }
-    return downstreamBranches;
+    BranchIndex updated;
+    if (current == null || current.snapshot != snapshot) {
+      updated = new BranchIndex(snapshot, manifestGeneration);
+    } else {
+      // Manifests are compared without the lock, so lookups keep using the current index meanwhile.
+      updated = updateBranchIndex(current, manifestGeneration);
+    }
+    synchronized (branchIndexLock) {
+      current = branchIndex;
+      if (current != null
+          && current.snapshot == snapshot
+          && current.manifestGeneration >= manifestGeneration) {
+        // Another thread swapped in an index at least as new while we were building ours.
+        return current;
+      }
+      branchIndex = updated;
+    }
+    return updated;
   }
 
-  public String getMissingDownstreamsMessage() throws ConfigInvalidException {
-    String message = getConfig().getString("global", null, "missingDownstreamsMessage");
-    if (message == null) {
-      message =
-          "Missing downstream branches ${missingDownstreams}. Please recreate the automerges. "
-              + "If your topic contains quotes or braces, please remove them.";
+  // Carries the scopes of an index over to a new manifest generation. Only the scopes of pairs
+  // involving a branch whose manifest actually changed are recomputed; the per-project branch
+  // relations are rebuilt lazily from the scopes, which only takes a bit test per pair.
+  private BranchIndex updateBranchIndex(BranchIndex old, long manifestGeneration) {
+    BranchIndex updated = new BranchIndex(old.snapshot, manifestGeneration);
+    Set<String> changedBranches = new HashSet<>();
+    try {
+      String manifestProject = getManifestProject(old.snapshot);
+      String manifestFile = getManifestFile(old.snapshot);
+      for (Map.Entry<String, ProjectSet> entry : old.manifests.entrySet()) {
+        String branch = entry.getKey();
+        ProjectSet oldProjects = entry.getValue();
+        ProjectSet newProjects = manifestCache.getProjects(manifestProject, manifestFile, branch);
+        updated.manifests.put(branch, newProjects);
+        if (!newProjects.equals(oldProjects)) {
+          changedBranches.add(branch);
+          log.debug(
+              "Manifest of {} changed: {} projects added, {} removed",
+              branch,
+              newProjects.andNot(oldProjects).size(),
+              oldProjects.andNot(newProjects).size());
+        }
+      }
+    } catch (RestApiException | IOException | ConfigInvalidException e) {
+      log.warn("Failed to update scopes after a manifest change, starting over", e);
+      return new BranchIndex(old.snapshot, manifestGeneration);
+    }
+
+    int patched = 0;
+    for (Map.Entry<String, ProjectSet> entry : old.scopes.entrySet()) {
+      List<String> branches = PAIR_SPLITTER.splitToList(entry.getKey());
+      String fromBranch = branches.get(0);
+      String toBranch = branches.get(1);
+      ConfigSnapshot.BranchPair branchPair = old.snapshot.getBranchPair(fromBranch, toBranch);
+      boolean usesSource = !branchPair.ignoreSourceManifest;
+      if (!updated.manifests.containsKey(toBranch)
+          || (usesSource && !updated.manifests.containsKey(fromBranch))) {
+        // Read after the manifests were compared, so there is nothing to compare it against.
+        continue;
+      }
+      boolean manifestChanged =
+          changedBranches.contains(toBranch)
+              || (usesSource && changedBranches.contains(fromBranch));
+      if (!manifestChanged || !branchPair.setProjects.isEmpty()) {
+        updated.scopes.put(entry.getKey(), entry.getValue());
+        continue;
+      }
+      try {
+        updated.scopes.put(
+            entry.getKey(),
+            getProjectsInScope(
+                old.snapshot, fromBranch, toBranch, b -> getManifest(updated, b)));
+        patched++;
+      } catch (RestApiException | IOException | ConfigInvalidException e) {
+        // Left out, so the next lookup of this pair reports the error.
+      }
     }
-    return message;
+    log.debug(
+        "Recomputed {} of {} scopes after manifest change of {}",
+        patched,
+        old.scopes.size(),
+        changedBranches);
+    return updated;
+  }
+
+  private interface Neighbors {
+    ImmutableSet<String> get(String branch)
+        throws RestApiException, IOException, ConfigInvalidException;
+  }
+
+  // The config has no cycles once checkBranchPairs passed, so this terminates.
+  private static ImmutableSet<String> getClosure(
+      Map<String, ImmutableSet<String>> memo, String branch, Neighbors neighbors)
+      throws RestApiException, IOException, ConfigInvalidException {
+    ImmutableSet<String> closure = memo.get(branch);
+    if (closure != null) {
+      return closure;
+    }
+    ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+    for (String neighbor : neighbors.get(branch)) {
+      builder.add(neighbor);
+      builder.addAll(getClosure(memo, neighbor, neighbors));
+    }
+    closure = builder.build();
+    memo.put(branch, closure);
+    return closure;
+  }
+
+  public String getMissingDownstreamsMessage() throws ConfigInvalidException {
+    return getSnapshot().getMissingDownstreamsMessage();
   }
 
   public short getMinAutomergeVote() throws ConfigInvalidException {
-    return (short) getConfig().getInt("global", "minAutomergeVote", -2);
+    return getSnapshot().getMinAutomergeVote();
   }
 
   public boolean minAutomergeVoteDisabled() throws ConfigInvalidException {
-    return getConfig().getBoolean("global", "disableMinAutomergeVote", false);
+    return getSnapshot().minAutomergeVoteDisabled();
   }
 
   public Account.Id getContextUserId() throws ConfigInvalidException {
-    int contextUserId = getConfig().getInt("global", "contextUserId", -1);
+    int contextUserId = getSnapshot().getContextUserId();
     if (contextUserId > 0) {
       return Account.id(contextUserId);
     }
     return user.get().getAccountId();
   }
 
+  /**
+   * Returns the number of threads to handle change events on.
+   *
+   * @return The number of threads, or 0 to handle events on the thread that fired them.
+   * @throws ConfigInvalidException
+   */
+  public int getAsyncThreads() throws ConfigInvalidException {
+    return getSnapshot().getAsyncThreads();
+  }
+
+  /**
+   * Returns how many change events may wait for a thread before new ones are rejected.
+   *
+   * @return The maximum number of waiting events.
+   * @throws ConfigInvalidException
+   */
+  public int getAsyncQueueSize() throws ConfigInvalidException {
+    return getSnapshot().getAsyncQueueSize();
+  }
+
+  /**
+   * Returns how long a change must go without new patch sets before it is merged downstream.
+   *
+   * @return The quiet window in milliseconds, or 0 to merge every patch set right away.
+   * @throws ConfigInvalidException
+   */
+  public long getCoalesceWindowMillis() throws ConfigInvalidException {
+    return getSnapshot().getCoalesceWindowMillis();
+  }
+
+  /**
+   * Returns the number of downstream branches a change may be merged to at the same time.
+   *
+   * @return The number of branches, at least 1.
+   * @throws ConfigInvalidException
+   */
+  public int getBranchThreads() throws ConfigInvalidException {
+    return getSnapshot().getBranchThreads();
+  }
+
+  /**
+   * Returns the number of changes to read from the index at a time when looking through a topic.
+   *
+   * @return The page size, at least 1.
+   * @throws ConfigInvalidException
+   */
+  public int getTopicPageSize() throws ConfigInvalidException {
+    return getSnapshot().getTopicPageSize();
+  }
+
   /**
    * Returns overriden manifest config if specified, default if not
    *
@@ -314,7 +650,11 @@ public class ConfigLoader {
    * @throws ConfigInvalidException
    */
   public String getManifestProject() throws ConfigInvalidException {
-    String manifestProject = getConfig().getString("global", null, "manifestProject");
+    return getManifestProject(getSnapshot());
+  }
+
+  private String getManifestProject(ConfigSnapshot snapshot) throws ConfigInvalidException {
+    String manifestProject = snapshot.getManifestProject();
     if (manifestProject == null) {
       throw new ConfigInvalidException("manifestProject not specified.");
     }
@@ -322,75 +662,44 @@ public class ConfigLoader {
   }
 
   // Returns overriden manifest config if specified, default if not
-  private String getManifestFile() throws ConfigInvalidException {
-    String manifestFile = getConfig().getString("global", null, "manifestFile");
+  private String getManifestFile(ConfigSnapshot snapshot) throws ConfigInvalidException {
+    String manifestFile = snapshot.getManifestFile();
     if (manifestFile == null) {
       throw new ConfigInvalidException("manifestFile not specified.");
     }
     return manifestFile;
   }
 
+  // Fails if the manifest project or file is missing, even when the manifests were read earlier.
+  private void validateManifestConfig(ConfigSnapshot snapshot) throws ConfigInvalidException {
+    getManifestProject(snapshot);
+    getManifestFile(snapshot);
+  }
+
   // Returns contents of manifest file for the given branch pair
   // If manifest does not exist, return empty set.
-  private Set<String> getManifestProjects(String fromBranch, String toBranch)
+  private ProjectSet getManifestProjects(
+      ConfigSnapshot snapshot,
+      ConfigSnapshot.BranchPair branchPair,
+      String fromBranch,
+      String toBranch,
+      ManifestSource manifests)
       throws RestApiException, IOException, ConfigInvalidException {
-    boolean ignoreSourceManifest =
-        getConfig()
-            .getBoolean(
-                "automerger",
-                fromBranch + BRANCH_DELIMITER + toBranch,
-                "ignoreSourceManifest",
-                false);
-
-    Set<String> toProjects =
-        getProjectsInManifest(getManifestProject(), getManifestFile(), toBranch);
-    if (ignoreSourceManifest) {
+    validateManifestConfig(snapshot);
+    ProjectSet toProjects = manifests.get(toBranch);
+    if (branchPair.ignoreSourceManifest) {
       return toProjects;
     }
 
-    Set<String> fromProjects =
-        getProjectsInManifest(getManifestProject(), getManifestFile(), fromBranch);
-    fromProjects.retainAll(toProjects);
-    return fromProjects;
-  }
-
-  private Set<String> getProjectsInManifest(
-      String manifestProject, String manifestFile, String branch)
-      throws RestApiException, IOException {
-    try (BinaryResult manifestConfig =
-        gApi.projects().name(manifestProject).branch(branch).file(manifestFile)) {
-      ManifestReader manifestReader = new ManifestReader(branch, manifestConfig.asString());
-      return manifestReader.getProjects();
-    } catch (ResourceNotFoundException e) {
-      log.debug("Manifest for {} not found", branch);
-      return new HashSet<>();
-    }
+    ProjectSet fromProjects = manifests.get(fromBranch);
+    return fromProjects.and(toProjects);
   }
 
-  private Set<String> applyConfig(String fromBranch, String toBranch, Set<String> inputProjects)
-      throws ConfigInvalidException {
-    Set<String> projects = new HashSet<>(inputProjects);
-    List<String> setProjects =
-        Arrays.asList(
-            getConfig()
-                .getStringList(
-                    "automerger", fromBranch + BRANCH_DELIMITER + toBranch, "setProjects"));
-    if (!setProjects.isEmpty()) {
-      projects.clear();
-      projects.addAll(setProjects);
+  private ProjectSet applyConfig(ConfigSnapshot.BranchPair branchPair, ProjectSet inputProjects) {
+    ProjectSet projects = inputProjects;
+    if (!branchPair.setProjects.isEmpty()) {
+      projects = branchPair.setProjects;
     }
-    List<String> addProjects =
-        Arrays.asList(
-            getConfig()
-                .getStringList(
-                    "automerger", fromBranch + BRANCH_DELIMITER + toBranch, "addProjects"));
-    projects.addAll(addProjects);
-    List<String> ignoreProjects =
-        Arrays.asList(
-            getConfig()
-                .getStringList(
-                    "automerger", fromBranch + BRANCH_DELIMITER + toBranch, "ignoreProjects"));
-    projects.removeAll(ignoreProjects);
-    return projects;
+    return projects.or(branchPair.addProjects).andNot(branchPair.ignoreProjects);
   }
 }
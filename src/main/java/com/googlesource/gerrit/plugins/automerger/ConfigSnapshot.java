@@ -0,0 +1,415 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.automerger;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Immutable, pre-parsed view of one revision of the automerger config.
+ *
+ * <p>A snapshot is built once per revision of the All-Projects config and then shared by every
+ * lookup until the config changes, so hot-path reads never touch the underlying {@link Config}.
+ */
+class ConfigSnapshot {
+  static final String BRANCH_DELIMITER = ":";
+  private static final String DEFAULT_CONFLICT_MESSAGE = "Merge conflict found on ${branch}";
+  private static final String DEFAULT_MISSING_DOWNSTREAMS_MESSAGE =
+      "Missing downstream branches ${missingDownstreams}. Please recreate the automerges. "
+          + "If your topic contains quotes or braces, please remove them.";
+
+  private final ObjectId revision;
+  private final String automergeLabel;
+  private final String hostName;
+  private final String conflictMessage;
+  private final String manifestConflictMessage;
+  private final String manifestProject;
+  private final String manifestFile;
+  private final String missingDownstreamsMessage;
+  private final short minAutomergeVote;
+  private final boolean minAutomergeVoteDisabled;
+  private final int contextUserId;
+  private final int asyncThreads;
+  private final int asyncQueueSize;
+  private final long coalesceWindowMillis;
+  private final int branchThreads;
+  private final int topicPageSize;
+  private final ImmutableList<String> blankMerge;
+  private final ImmutableList<String> alwaysBlankMerge;
+  private final SkipRules skipRules;
+  private final ImmutableMap<String, BranchPair> branchPairs;
+  private final ImmutableMap<String, ImmutableSet<String>> downstreamMap;
+  private final ImmutableMap<String, ImmutableSet<String>> upstreamMap;
+  private final String branchPairError;
+
+  /** Settings of a single {@code [automerger "fromBranch:toBranch"]} subsection. */
+  static class BranchPair {
+    private static final BranchPair EMPTY =
+        new BranchPair(
+            null, null, false, false, ProjectSet.EMPTY, ProjectSet.EMPTY, ProjectSet.EMPTY, null);
+
+    final String fromBranch;
+    final String toBranch;
+    final boolean mergeAll;
+    final boolean ignoreSourceManifest;
+    final ProjectSet setProjects;
+    final ProjectSet addProjects;
+    final ProjectSet ignoreProjects;
+    /** Skip rules overriding the global ones for this pair, or null if not overridden. */
+    final SkipRules skipRules;
+
+    private BranchPair(
+        String fromBranch,
+        String toBranch,
+        boolean mergeAll,
+        boolean ignoreSourceManifest,
+        ProjectSet setProjects,
+        ProjectSet addProjects,
+        ProjectSet ignoreProjects,
+        SkipRules skipRules) {
+      this.fromBranch = fromBranch;
+      this.toBranch = toBranch;
+      this.mergeAll = mergeAll;
+      this.ignoreSourceManifest = ignoreSourceManifest;
+      this.setProjects = setProjects;
+      this.addProjects = addProjects;
+      this.ignoreProjects = ignoreProjects;
+      this.skipRules = skipRules;
+    }
+  }
+
+  /**
+   * Parses the given config into a snapshot.
+   *
+   * @param revision Revision of the config, used to detect when the snapshot is stale.
+   * @param cfg The automerger config.
+   * @param pluginName Name of the section holding the branch pairs.
+   * @param dictionary Dictionary to intern the projects named in the config with.
+   * @return The parsed snapshot.
+   */
+  static ConfigSnapshot parse(
+      ObjectId revision, Config cfg, String pluginName, ProjectDictionary dictionary) {
+    return new ConfigSnapshot(revision, cfg, pluginName, dictionary);
+  }
+
+  private ConfigSnapshot(
+      ObjectId revision, Config cfg, String pluginName, ProjectDictionary dictionary) {
+    this.revision = revision;
+
+    String label = cfg.getString("global", null, "automergeLabel");
+    automergeLabel = label != null ? label : "Code-Review";
+    hostName = cfg.getString("global", null, "hostName");
+    String conflict = cfg.getString("global", null, "conflictMessage");
+    conflictMessage = Strings.isNullOrEmpty(conflict) ? DEFAULT_CONFLICT_MESSAGE : conflict;
+    String manifestConflict = cfg.getString("global", null, "manifestConflictMessage");
+    manifestConflictMessage =
+        Strings.isNullOrEmpty(manifestConflict) ? conflictMessage : manifestConflict;
+    manifestProject = cfg.getString("global", null, "manifestProject");
+    manifestFile = cfg.getString("global", null, "manifestFile");
+    String missingDownstreams = cfg.getString("global", null, "missingDownstreamsMessage");
+    missingDownstreamsMessage =
+        missingDownstreams != null ? missingDownstreams : DEFAULT_MISSING_DOWNSTREAMS_MESSAGE;
+    minAutomergeVote = (short) cfg.getInt("global", "minAutomergeVote", -2);
+    minAutomergeVoteDisabled = cfg.getBoolean("global", "disableMinAutomergeVote", false);
+    contextUserId = cfg.getInt("global", "contextUserId", -1);
+    asyncThreads = Math.max(0, cfg.getInt("global", "asyncThreads", 0));
+    asyncQueueSize = Math.max(1, cfg.getInt("global", "asyncQueueSize", 1000));
+    coalesceWindowMillis =
+        Math.max(0, cfg.getTimeUnit("global", null, "coalesceWindow", 0, TimeUnit.MILLISECONDS));
+    branchThreads = Math.max(1, cfg.getInt("global", "branchThreads", 1));
+    topicPageSize = Math.max(1, cfg.getInt("global", "topicPageSize", 100));
+    blankMerge = ImmutableList.copyOf(cfg.getStringList("global", null, "blankMerge"));
+    alwaysBlankMerge = ImmutableList.copyOf(cfg.getStringList("global", null, "alwaysBlankMerge"));
+    skipRules = SkipRules.compile(alwaysBlankMerge, blankMerge);
+
+    String error = null;
+    Map<String, BranchPair> pairs = new LinkedHashMap<>();
+    Map<String, ImmutableSet.Builder<String>> downstreams = new LinkedHashMap<>();
+    Map<String, ImmutableSet.Builder<String>> upstreams = new LinkedHashMap<>();
+    for (String subsection : cfg.getSubsections(pluginName)) {
+      // Subsections are of the form "fromBranch:toBranch"
+      List<String> branchPair =
+          Splitter.on(BRANCH_DELIMITER).trimResults().omitEmptyStrings().splitToList(subsection);
+      if (branchPair.size() != 2) {
+        if (error == null) {
+          error = "Automerger config branch pair malformed: " + subsection;
+        }
+        continue;
+      }
+      String fromBranch = branchPair.get(0);
+      String toBranch = branchPair.get(1);
+      pairs.put(
+          pairKey(fromBranch, toBranch),
+          new BranchPair(
+              fromBranch,
+              toBranch,
+              cfg.getBoolean("automerger", subsection, "mergeAll", false),
+              cfg.getBoolean("automerger", subsection, "ignoreSourceManifest", false),
+              projects(dictionary, cfg, subsection, "setProjects"),
+              projects(dictionary, cfg, subsection, "addProjects"),
+              projects(dictionary, cfg, subsection, "ignoreProjects"),
+              pairSkipRules(cfg, subsection)));
+      downstreams.computeIfAbsent(fromBranch, k -> ImmutableSet.builder()).add(toBranch);
+      upstreams.computeIfAbsent(toBranch, k -> ImmutableSet.builder()).add(fromBranch);
+    }
+    branchPairs = ImmutableMap.copyOf(pairs);
+    downstreamMap = buildAdjacency(downstreams);
+    upstreamMap = buildAdjacency(upstreams);
+    branchPairError = error != null ? error : findCycle(downstreamMap);
+  }
+
+  private static ImmutableMap<String, ImmutableSet<String>> buildAdjacency(
+      Map<String, ImmutableSet.Builder<String>> adjacency) {
+    ImmutableMap.Builder<String, ImmutableSet<String>> builder = ImmutableMap.builder();
+    for (Map.Entry<String, ImmutableSet.Builder<String>> entry : adjacency.entrySet()) {
+      builder.put(entry.getKey(), entry.getValue().build());
+    }
+    return builder.build();
+  }
+
+  // Merging around a cycle would never terminate, so a config containing one is invalid as a
+  // whole. Returns a description of the first cycle found, or null if there is none.
+  private static String findCycle(Map<String, ImmutableSet<String>> downstreamMap) {
+    Set<String> done = new HashSet<>();
+    for (String branch : downstreamMap.keySet()) {
+      List<String> cycle = findCycle(downstreamMap, branch, new ArrayList<>(), done);
+      if (cycle != null) {
+        return "Automerger config branch pairs form a cycle: "
+            + Joiner.on(" -> ").join(cycle);
+      }
+    }
+    return null;
+  }
+
+  private static List<String> findCycle(
+      Map<String, ImmutableSet<String>> downstreamMap,
+      String branch,
+      List<String> path,
+      Set<String> done) {
+    int index = path.indexOf(branch);
+    if (index >= 0) {
+      List<String> cycle = new ArrayList<>(path.subList(index, path.size()));
+      cycle.add(branch);
+      return cycle;
+    }
+    if (done.contains(branch)) {
+      return null;
+    }
+    path.add(branch);
+    for (String toBranch : downstreamMap.getOrDefault(branch, ImmutableSet.of())) {
+      List<String> cycle = findCycle(downstreamMap, toBranch, path, done);
+      if (cycle != null) {
+        return cycle;
+      }
+    }
+    path.remove(path.size() - 1);
+    done.add(branch);
+    return null;
+  }
+
+  private static ProjectSet projects(
+      ProjectDictionary dictionary, Config cfg, String subsection, String name) {
+    return ProjectSet.of(
+        dictionary, Arrays.asList(cfg.getStringList("automerger", subsection, name)));
+  }
+
+  // Only pairs that override one of the rule lists get their own compiled rules.
+  private SkipRules pairSkipRules(Config cfg, String subsection) {
+    String[] pairBlankMerge = cfg.getStringList("automerger", subsection, "blankMerge");
+    String[] pairAlwaysBlankMerge = cfg.getStringList("automerger", subsection, "alwaysBlankMerge");
+    if (pairBlankMerge.length == 0 && pairAlwaysBlankMerge.length == 0) {
+      return null;
+    }
+    return SkipRules.compile(
+        pairAlwaysBlankMerge.length > 0
+            ? Arrays.asList(pairAlwaysBlankMerge)
+            : alwaysBlankMerge,
+        pairBlankMerge.length > 0 ? Arrays.asList(pairBlankMerge) : blankMerge);
+  }
+
+  private static String pairKey(String fromBranch, String toBranch) {
+    return fromBranch + BRANCH_DELIMITER + toBranch;
+  }
+
+  /**
+   * Returns whether this snapshot was built from the given config revision.
+   *
+   * @param otherRevision Revision of the config currently in use.
+   * @return True if the snapshot is up to date.
+   */
+  boolean isRevision(ObjectId otherRevision) {
+    return Objects.equals(revision, otherRevision);
+  }
+
+  /**
+   * Throws if any of the branch pair subsections could not be parsed, or if they form a cycle.
+   *
+   * @throws ConfigInvalidException
+   */
+  void checkBranchPairs() throws ConfigInvalidException {
+    if (branchPairError != null) {
+      throw new ConfigInvalidException(branchPairError);
+    }
+  }
+
+  /**
+   * Returns the branches configured as immediately downstream of the given branch.
+   *
+   * @param fromBranch Branch we are merging from.
+   * @return The configured downstream branches, regardless of project scope.
+   * @throws ConfigInvalidException
+   */
+  ImmutableSet<String> getDownstreamBranches(String fromBranch) throws ConfigInvalidException {
+    checkBranchPairs();
+    ImmutableSet<String> downstreamBranches = downstreamMap.get(fromBranch);
+    return downstreamBranches != null ? downstreamBranches : ImmutableSet.of();
+  }
+
+  /**
+   * Returns the branches configured as immediately upstream of the given branch.
+   *
+   * @param toBranch Branch we are merging to.
+   * @return The configured upstream branches, regardless of project scope.
+   * @throws ConfigInvalidException
+   */
+  ImmutableSet<String> getUpstreamBranches(String toBranch) throws ConfigInvalidException {
+    checkBranchPairs();
+    ImmutableSet<String> upstreamBranches = upstreamMap.get(toBranch);
+    return upstreamBranches != null ? upstreamBranches : ImmutableSet.of();
+  }
+
+  /**
+   * Returns the settings of the given branch pair.
+   *
+   * @param fromBranch Branch we are merging from.
+   * @param toBranch Branch we are merging to.
+   * @return The settings of the pair, or empty settings if the pair is not configured.
+   */
+  BranchPair getBranchPair(String fromBranch, String toBranch) {
+    BranchPair pair = branchPairs.get(pairKey(fromBranch, toBranch));
+    return pair != null ? pair : BranchPair.EMPTY;
+  }
+
+  /**
+   * Returns the skip rules that apply when merging between the given branches.
+   *
+   * @param fromBranch Branch we are merging from.
+   * @param toBranch Branch we are merging to.
+   * @return The rules of the branch pair if it overrides them, otherwise the global rules.
+   */
+  SkipRules getSkipRules(String fromBranch, String toBranch) {
+    SkipRules pairRules = getBranchPair(fromBranch, toBranch).skipRules;
+    return pairRules != null ? pairRules : skipRules;
+  }
+
+  /**
+   * Estimates the heap used by this snapshot, not counting strings shared with the config.
+   *
+   * @return The estimated size in bytes.
+   */
+  long estimateHeapBytes() {
+    long bytes = 0;
+    for (BranchPair pair : branchPairs.values()) {
+      // Header and fields of the pair and its map entry, plus the project bitmaps.
+      bytes += 96;
+      bytes += pair.setProjects.estimateHeapBytes();
+      bytes += pair.addProjects.estimateHeapBytes();
+      bytes += pair.ignoreProjects.estimateHeapBytes();
+    }
+    for (ImmutableSet<String> branches : downstreamMap.values()) {
+      bytes += 64 + 16L * branches.size();
+    }
+    for (ImmutableSet<String> branches : upstreamMap.values()) {
+      bytes += 64 + 16L * branches.size();
+    }
+    return bytes;
+  }
+
+  String getAutomergeLabel() {
+    return automergeLabel;
+  }
+
+  String getHostName() {
+    return hostName;
+  }
+
+  String getConflictMessage() {
+    return conflictMessage;
+  }
+
+  String getManifestConflictMessage() {
+    return manifestConflictMessage;
+  }
+
+  String getManifestProject() {
+    return manifestProject;
+  }
+
+  String getManifestFile() {
+    return manifestFile;
+  }
+
+  String getMissingDownstreamsMessage() {
+    return missingDownstreamsMessage;
+  }
+
+  short getMinAutomergeVote() {
+    return minAutomergeVote;
+  }
+
+  boolean minAutomergeVoteDisabled() {
+    return minAutomergeVoteDisabled;
+  }
+
+  int getContextUserId() {
+    return contextUserId;
+  }
+
+  int getAsyncThreads() {
+    return asyncThreads;
+  }
+
+  int getAsyncQueueSize() {
+    return asyncQueueSize;
+  }
+
+  long getCoalesceWindowMillis() {
+    return coalesceWindowMillis;
+  }
+
+  int getBranchThreads() {
+    return branchThreads;
+  }
+
+  int getTopicPageSize() {
+    return topicPageSize;
+  }
+}
@@ -14,8 +14,13 @@
 package com.googlesource.gerrit.plugins.automerger;
 
 import static com.google.common.base.Strings.isNullOrEmpty;
+import static com.google.common.base.Strings.nullToEmpty;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
 import com.google.gerrit.exceptions.StorageException;
 import com.google.gerrit.extensions.api.GerritApi;
 import com.google.gerrit.extensions.api.changes.AbandonInput;
@@ -25,6 +30,7 @@ import com.google.gerrit.extensions.api.changes.RestoreInput;
 import com.google.gerrit.extensions.api.changes.ReviewInput;
 import com.google.gerrit.extensions.client.ChangeStatus;
 import com.google.gerrit.extensions.client.ListChangesOption;
+import com.google.gerrit.extensions.common.ApprovalInfo;
 import com.google.gerrit.extensions.common.ChangeInfo;
 import com.google.gerrit.extensions.common.ChangeInput;
 import com.google.gerrit.extensions.common.CommitInfo;
@@ -38,22 +44,33 @@ import com.google.gerrit.extensions.events.CommentAddedListener;
 import com.google.gerrit.extensions.events.RevisionCreatedListener;
 import com.google.gerrit.extensions.events.TopicEditedListener;
 import com.google.gerrit.extensions.restapi.AuthException;
+import com.google.gerrit.extensions.restapi.BadRequestException;
 import com.google.gerrit.extensions.restapi.MergeConflictException;
 import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.gerrit.reviewdb.client.Account;
 import com.google.gerrit.server.CurrentUser;
 import com.google.gerrit.server.util.ManualRequestContext;
 import com.google.gerrit.server.util.OneOffRequestContext;
 import com.google.inject.Inject;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.OptionalInt;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
 import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -76,19 +93,95 @@ public class DownstreamCreator
   private static final String SUBJECT_PREFIX = "automerger";
   private static final String SKIPPED_PREFIX = "skipped";
   private static final String CURRENT = "current";
+  private static final ImmutableSet<ListChangesOption> REVISIONS_AND_COMMIT =
+      Sets.immutableEnumSet(ListChangesOption.ALL_REVISIONS, ListChangesOption.CURRENT_COMMIT);
+  // Topics the automerger is setting on this thread, by change number. Gerrit fires the topic
+  // edited event on the thread that edits the topic, before the edit returns.
+  private static final ThreadLocal<Map<Integer, String>> OWN_TOPIC_EDITS =
+      ThreadLocal.withInitial(HashMap::new);
+  // Changes the automerger is copying votes to on this thread. The votes were copied down the rest
+  // of the tree already, so the comment events they fire need no handling.
+  private static final ThreadLocal<Set<Integer>> OWN_VOTES = ThreadLocal.withInitial(HashSet::new);
 
   protected GerritApi gApi;
   protected ConfigLoader config;
   protected CurrentUser user;
 
   private final OneOffRequestContext oneOffRequestContext;
+  private final DownstreamWorkQueue workQueue;
+  private final DownstreamIndex index;
+  private final ParentOperator parentOperator;
+  private final ChangeLookup changeLookup;
+  private final AncestryCache ancestryCache;
+  // Oldest patch set of each change whose downstream merge may have been superseded by a newer
+  // patch set before it ran. Its predecessor is the one that may still have downstream merges.
+  private final ConcurrentMap<Integer, Integer> firstPendingPatchSet = new ConcurrentHashMap<>();
+  // Topic each change had before the topic edits whose propagation is still pending. Those edits
+  // are collapsed into one, and the downstream merges still have this topic.
+  private final ConcurrentMap<Integer, String> firstPendingOldTopic = new ConcurrentHashMap<>();
 
   @Inject
   public DownstreamCreator(
-      GerritApi gApi, ConfigLoader config, OneOffRequestContext oneOffRequestContext) {
+      GerritApi gApi,
+      ConfigLoader config,
+      OneOffRequestContext oneOffRequestContext,
+      DownstreamWorkQueue workQueue,
+      DownstreamIndex index,
+      ParentOperator parentOperator,
+      ChangeLookup changeLookup,
+      AncestryCache ancestryCache) {
     this.gApi = gApi;
     this.config = config;
     this.oneOffRequestContext = oneOffRequestContext;
+    this.workQueue = workQueue;
+    this.index = index;
+    this.parentOperator = parentOperator;
+    this.changeLookup = changeLookup;
+    this.ancestryCache = ancestryCache;
+  }
+
+  /**
+   * Hands the work for an event to the work queue.
+   *
+   * <p>The user to act as is resolved here, on the thread that fired the event, because the queued
+   * work may run on a thread with no current user.
+   *
+   * @param listener Name of the listener, for logging.
+   * @param change Change the event is about; work for the same change runs in order.
+   * @param latestOnly Whether the work may be dropped in favor of a later event on the change.
+   * @param handler Work to run as the given user, with lookups shared for the whole event.
+   */
+  private void submit(
+      String listener,
+      ChangeInfo change,
+      boolean latestOnly,
+      BiConsumer<Account.Id, LookupContext> handler) {
+    Account.Id contextUserId;
+    try {
+      contextUserId = config.getContextUserId();
+    } catch (ConfigInvalidException e) {
+      log.error("Automerger plugin failed {} for {}", listener, change.id, e);
+      return;
+    }
+    Runnable task =
+        () -> {
+          LookupContext lookups = newLookupContext();
+          handler.accept(contextUserId, lookups);
+          log.debug(
+              "Automerger {} for {} saved {} change lookups",
+              listener,
+              change.id,
+              lookups.getSavedCalls());
+        };
+    if (latestOnly) {
+      workQueue.submitLatest(change._number, listener, task);
+    } else {
+      workQueue.submit(change._number, task);
+    }
+  }
+
+  private LookupContext newLookupContext() {
+    return new LookupContext(gApi, index, parentOperator, changeLookup);
   }
 
   /**
@@ -98,11 +191,20 @@ public class DownstreamCreator
    */
   @Override
   public void onChangeAbandoned(ChangeAbandonedListener.Event event) {
-    try (ManualRequestContext ctx = oneOffRequestContext.openAs(config.getContextUserId())) {
+    submit(
+        "onChangeAbandoned",
+        event.getChange(),
+        false,
+        (id, lookups) -> handleChangeAbandoned(event, id, lookups));
+  }
+
+  private void handleChangeAbandoned(
+      ChangeAbandonedListener.Event event, Account.Id contextUserId, LookupContext lookups) {
+    try (ManualRequestContext ctx = oneOffRequestContext.openAs(contextUserId)) {
       ChangeInfo change = event.getChange();
       String revision = event.getRevision().commit.commit;
       log.debug("Detected revision {} abandoned on {}.", revision, change.project);
-      abandonDownstream(change, revision);
+      abandonDownstream(lookups, change, revision);
     } catch (ConfigInvalidException | StorageException e) {
       log.error("Automerger plugin failed onChangeAbandoned for {}", event.getChange().id, e);
     }
@@ -115,21 +217,37 @@ public class DownstreamCreator
    */
   @Override
   public void onTopicEdited(TopicEditedListener.Event event) {
-    try (ManualRequestContext ctx = oneOffRequestContext.openAs(config.getContextUserId())) {
+    if (isOwnTopicEdit(event.getChange())) {
+      log.debug(
+          "Ignoring topic {} set on {} by the automerger",
+          event.getChange().topic,
+          event.getChange().id);
+      return;
+    }
+    firstPendingOldTopic.putIfAbsent(event.getChange()._number, nullToEmpty(event.getOldTopic()));
+    submit(
+        "onTopicEdited",
+        event.getChange(),
+        true,
+        (id, lookups) -> handleTopicEdited(event, id, lookups));
+  }
+
+  private void handleTopicEdited(
+      TopicEditedListener.Event event, Account.Id contextUserId, LookupContext lookups) {
+    // Taken before anything can fail, so a failure does not leave it for later edits.
+    String firstOldTopic = firstPendingOldTopic.remove(event.getChange()._number);
+    try (ManualRequestContext ctx = oneOffRequestContext.openAs(contextUserId)) {
       ChangeInfo eventChange = event.getChange();
       // We have to re-query for this in order to include the current revision
       ChangeInfo change;
       try {
         change =
-            gApi.changes()
-                .id(eventChange._number)
-                .get(EnumSet.of(ListChangesOption.CURRENT_REVISION));
+            lookups.getChange(eventChange._number, EnumSet.of(ListChangesOption.CURRENT_REVISION));
       } catch (RestApiException e) {
         log.error("Automerger could not get change with current revision for onTopicEdited: ", e);
         return;
       }
-      String oldTopic = event.getOldTopic();
-      String revision = change.currentRevision;
+      String oldTopic = firstOldTopic != null ? firstOldTopic : nullToEmpty(event.getOldTopic());
       Set<String> downstreamBranches;
       try {
         downstreamBranches = config.getDownstreamBranches(change.branch, change.project);
@@ -146,7 +264,7 @@ public class DownstreamCreator
       // If change is empty, prevent someone breaking topic.
       if (isNullOrEmpty(change.topic)) {
         try {
-          gApi.changes().id(change._number).topic(oldTopic);
+          setOwnTopic(change._number, oldTopic);
           ReviewInput reviewInput = new ReviewInput();
           reviewInput.message(
               "Automerger prevented the topic from changing. Topic can only be modified on "
@@ -156,33 +274,164 @@ public class DownstreamCreator
         } catch (RestApiException e) {
           log.error("Failed to prevent setting empty topic for automerger plugin.", e);
         }
+      } else if (oldTopic.isEmpty()) {
+        // Downstream merges always get a topic, so a change without one has none yet.
+        log.debug("No downstream merges of {} to move to topic {}", change.id, change.topic);
       } else {
-        for (String downstreamBranch : downstreamBranches) {
-          try {
-            List<Integer> existingDownstream =
-                getExistingMergesOnBranch(revision, oldTopic, downstreamBranch);
-            for (Integer changeNumber : existingDownstream) {
-              log.debug("Setting topic {} on {}", change.topic, changeNumber);
-              gApi.changes().id(changeNumber).topic(change.topic);
+        setDownstreamTopics(
+            lookups, change, oldTopic, getDownstreamTree(lookups, change, oldTopic), contextUserId);
+      }
+    } catch (StorageException | ConfigInvalidException e) {
+      log.error("Automerger plugin failed onTopicEdited for {}", event.getChange().id, e);
+    }
+  }
+
+  /**
+   * Finds the existing merges of a change downstream, and the merges of those further downstream,
+   * all the way down.
+   *
+   * <p>The whole tree is found before any topic is changed, since each level is looked up by the
+   * topic it still has.
+   *
+   * @param lookups Lookups shared while handling the event.
+   * @param change The upstream change, with its current revision.
+   * @param topic Topic the merges have.
+   * @return Numbers of the merges, each level after the one above it.
+   * @throws ConfigInvalidException
+   */
+  private List<Integer> getDownstreamTree(LookupContext lookups, ChangeInfo change, String topic)
+      throws ConfigInvalidException {
+    List<Integer> tree = new ArrayList<>();
+    Set<Integer> seen = new HashSet<>();
+    seen.add(change._number);
+    Deque<ChangeInfo> upstreams = new ArrayDeque<>();
+    upstreams.add(change);
+    while (!upstreams.isEmpty()) {
+      ChangeInfo upstream = upstreams.remove();
+      try {
+        for (String downstreamBranch :
+            config.getDownstreamBranches(upstream.branch, upstream.project)) {
+          for (Integer changeNumber :
+              getExistingMergesOnBranch(
+                  lookups, upstream.currentRevision, topic, downstreamBranch)) {
+            if (seen.add(changeNumber)) {
+              tree.add(changeNumber);
+              upstreams.add(
+                  lookups.getChange(changeNumber, EnumSet.of(ListChangesOption.CURRENT_REVISION)));
             }
-          } catch (RestApiException | InvalidQueryParameterException e) {
-            log.error("Failed to edit downstream topics of {}", change.id, e);
           }
         }
+      } catch (RestApiException | IOException | InvalidQueryParameterException e) {
+        log.error("Failed to find downstream merges of {}", upstream.id, e);
       }
-    } catch (StorageException | ConfigInvalidException e) {
-      log.error("Automerger plugin failed onTopicEdited for {}", event.getChange().id, e);
     }
+    return tree;
   }
 
   /**
-   * Updates downstream votes for a change each time a comment is made.
+   * Sets the topic of the given downstream merges to the topic of their upstream change, on up to
+   * {@code global.branchThreads} threads.
+   *
+   * @param lookups Lookups shared while handling the event.
+   * @param change The upstream change.
+   * @param oldTopic Topic the merges had.
+   * @param downstreams Numbers of the merges.
+   * @param contextUserId The user to set the topics as.
+   */
+  private void setDownstreamTopics(
+      LookupContext lookups,
+      ChangeInfo change,
+      String oldTopic,
+      List<Integer> downstreams,
+      Account.Id contextUserId) {
+    List<Callable<Void>> edits = new ArrayList<>();
+    for (int changeNumber : downstreams) {
+      edits.add(
+          () -> {
+            try (ManualRequestContext editCtx = oneOffRequestContext.openAs(contextUserId)) {
+              log.debug("Setting topic {} on {}", change.topic, changeNumber);
+              setOwnTopic(changeNumber, change.topic);
+              lookups.setTopic(changeNumber, change.topic);
+            }
+            return null;
+          });
+    }
+    List<Future<Void>> results;
+    try {
+      results = workQueue.invokeAll(edits);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.error("Interrupted while editing downstream topics of {}", change.id, e);
+      return;
+    }
+    for (int i = 0; i < downstreams.size(); i++) {
+      try {
+        results.get(i).get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException e) {
+        log.error(
+            "Failed to change topic of {} from {} to {}",
+            downstreams.get(i),
+            oldTopic,
+            change.topic,
+            e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Updates downstream votes for a change each time a comment changes a vote.
    *
    * @param event Event we are listening to.
    */
   @Override
   public void onCommentAdded(CommentAddedListener.Event event) {
-    try (ManualRequestContext ctx = oneOffRequestContext.openAs(config.getContextUserId())) {
+    if (OWN_VOTES.get().contains(event.getChange()._number)) {
+      log.debug("Ignoring votes given to {} by the automerger", event.getChange().id);
+      return;
+    }
+    if (!changesVotes(event.getApprovals(), event.getOldApprovals())) {
+      log.debug("Comment on {} does not change any votes", event.getChange().id);
+      return;
+    }
+    submit(
+        "onCommentAdded",
+        event.getChange(),
+        false,
+        (id, lookups) -> handleCommentAdded(event, id, lookups));
+  }
+
+  /**
+   * Returns whether a comment changed any vote. Gerrit gives the old value of each label the
+   * comment changed, where no vote counts as 0, and a null old value for every label it left alone.
+   *
+   * @param approvals The votes after the comment.
+   * @param oldApprovals The votes before the comment, by label.
+   * @return True if any label has a known old value that differs from its value now.
+   */
+  static boolean changesVotes(
+      Map<String, ApprovalInfo> approvals, Map<String, ApprovalInfo> oldApprovals) {
+    if (oldApprovals == null) {
+      return false;
+    }
+    for (Map.Entry<String, ApprovalInfo> oldApproval : oldApprovals.entrySet()) {
+      if (oldApproval.getValue() == null || oldApproval.getValue().value == null) {
+        continue;
+      }
+      ApprovalInfo approval = approvals != null ? approvals.get(oldApproval.getKey()) : null;
+      int value = approval != null && approval.value != null ? approval.value : 0;
+      if (value != oldApproval.getValue().value) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void handleCommentAdded(
+      CommentAddedListener.Event event, Account.Id contextUserId, LookupContext lookups) {
+    try (ManualRequestContext ctx = oneOffRequestContext.openAs(contextUserId)) {
       RevisionInfo eventRevision = event.getRevision();
       if (!eventRevision.isCurrent) {
         log.info(
@@ -191,44 +440,61 @@ public class DownstreamCreator
         return;
       }
       ChangeInfo change = event.getChange();
-      String revision = change.currentRevision;
-      Set<String> downstreamBranches;
-      downstreamBranches = config.getDownstreamBranches(change.branch, change.project);
-
-      if (downstreamBranches.isEmpty()) {
+      if (config.getAllDownstreamBranches(change.branch, change.project).isEmpty()) {
         log.debug("Downstream branches of {} on {} are empty", change.branch, change.project);
         return;
       }
 
-      Map<String, LabelInfo> labels =
-          gApi.changes()
-              .id(change._number)
-              .get(EnumSet.of(ListChangesOption.DETAILED_LABELS))
-              .labels;
+      ChangeInfo labeledChange =
+          lookups.getChange(change._number, EnumSet.of(ListChangesOption.DETAILED_LABELS));
 
-      for (String downstreamBranch : downstreamBranches) {
-        try {
-          List<Integer> existingDownstream =
-              getExistingMergesOnBranch(revision, change.topic, downstreamBranch);
-          for (Integer changeNumber : existingDownstream) {
-            ChangeInfo downstreamChange =
-                gApi.changes().id(changeNumber).get(EnumSet.of(ListChangesOption.CURRENT_REVISION));
-            for (Map.Entry<String, LabelInfo> labelEntry : labels.entrySet()) {
-              if (labelEntry.getValue().all.size() > 0) {
-                OptionalInt maxVote =
-                    labelEntry.getValue().all.stream()
-                        .filter(o -> o.value != null)
-                        .mapToInt(i -> i.value)
-                        .max();
-
-                if (maxVote.isPresent()) {
-                  updateVote(downstreamChange, labelEntry.getKey(), (short) maxVote.getAsInt());
+      // Vote on every level of the downstream tree here, rather than leaving each level to the
+      // comment event of our vote on the level above it. Each level gets the highest votes of the
+      // change directly above it, which may have votes of its own.
+      Map<Integer, Map<String, Integer>> maxVotesByChange = new HashMap<>();
+      maxVotesByChange.put(
+          change._number, getMaxVotes(labeledChange, ImmutableMap.of(), contextUserId));
+      Deque<ChangeInfo> upstreams = new ArrayDeque<>();
+      upstreams.add(change);
+      while (!upstreams.isEmpty()) {
+        ChangeInfo upstream = upstreams.remove();
+        Map<String, Integer> maxVotes = maxVotesByChange.get(upstream._number);
+        for (String downstreamBranch :
+            config.getDownstreamBranches(upstream.branch, upstream.project)) {
+          try {
+            List<Integer> existingDownstream =
+                getExistingMergesOnBranch(
+                    lookups, upstream.currentRevision, change.topic, downstreamBranch);
+            for (Integer changeNumber : existingDownstream) {
+              if (maxVotesByChange.containsKey(changeNumber)) {
+                continue;
+              }
+              ChangeInfo downstreamChange =
+                  lookups.getChange(
+                      changeNumber,
+                      EnumSet.of(
+                          ListChangesOption.DETAILED_LABELS, ListChangesOption.CURRENT_REVISION));
+              maxVotesByChange.put(
+                  changeNumber, getMaxVotes(downstreamChange, maxVotes, contextUserId));
+              upstreams.add(downstreamChange);
+              // Only the labels where we do not already have the upstream's highest vote.
+              Map<String, Short> votes = new HashMap<>();
+              for (Map.Entry<String, Integer> maxVote : maxVotes.entrySet()) {
+                if (maxVote.getValue()
+                    != getVote(downstreamChange, maxVote.getKey(), contextUserId)) {
+                  votes.put(maxVote.getKey(), maxVote.getValue().shortValue());
                 }
               }
+              if (votes.isEmpty()) {
+                log.debug("Votes on {} are already up to date", downstreamChange.id);
+                continue;
+              }
+              lookups.invalidate(changeNumber);
+              updateVotes(downstreamChange, votes);
             }
+          } catch (RestApiException | InvalidQueryParameterException e) {
+            log.error("Exception when updating downstream votes of {}", upstream.id, e);
           }
-        } catch (RestApiException | InvalidQueryParameterException e) {
-          log.error("Exception when updating downstream votes of {}", change.id, e);
         }
       }
     } catch (StorageException | ConfigInvalidException | RestApiException | IOException e) {
@@ -243,9 +509,18 @@ public class DownstreamCreator
    */
   @Override
   public void onChangeRestored(ChangeRestoredListener.Event event) {
-    try (ManualRequestContext ctx = oneOffRequestContext.openAs(config.getContextUserId())) {
+    submit(
+        "onChangeRestored",
+        event.getChange(),
+        false,
+        (id, lookups) -> handleChangeRestored(event, id, lookups));
+  }
+
+  private void handleChangeRestored(
+      ChangeRestoredListener.Event event, Account.Id contextUserId, LookupContext lookups) {
+    try (ManualRequestContext ctx = oneOffRequestContext.openAs(contextUserId)) {
       ChangeInfo change = event.getChange();
-      automergeChanges(change, event.getRevision());
+      automergeChanges(lookups, change, event.getRevision(), event.getRevision()._number);
     } catch (RestApiException
         | IOException
         | ConfigInvalidException
@@ -262,9 +537,30 @@ public class DownstreamCreator
    */
   @Override
   public void onRevisionCreated(RevisionCreatedListener.Event event) {
-    try (ManualRequestContext ctx = oneOffRequestContext.openAs(config.getContextUserId())) {
+    firstPendingPatchSet.merge(event.getChange()._number, event.getRevision()._number, Math::min);
+    submit(
+        "onRevisionCreated",
+        event.getChange(),
+        true,
+        (id, lookups) -> handleRevisionCreated(event, id, lookups));
+  }
+
+  private void handleRevisionCreated(
+      RevisionCreatedListener.Event event, Account.Id contextUserId, LookupContext lookups) {
+    // Taken before anything can fail, so a failure does not leave it for later patch sets.
+    Integer firstPatchSetNumber = firstPendingPatchSet.remove(event.getChange()._number);
+    try (ManualRequestContext ctx = oneOffRequestContext.openAs(contextUserId)) {
       ChangeInfo change = event.getChange();
-      automergeChanges(change, event.getRevision());
+      int patchSetNumber = event.getRevision()._number;
+      if (firstPatchSetNumber != null && firstPatchSetNumber < patchSetNumber) {
+        log.debug(
+            "Automerging patch set {} of {} in place of patch sets {} and up",
+            patchSetNumber,
+            change.id,
+            firstPatchSetNumber);
+        patchSetNumber = firstPatchSetNumber;
+      }
+      automergeChanges(lookups, change, event.getRevision(), patchSetNumber);
     } catch (RestApiException
         | IOException
         | ConfigInvalidException
@@ -276,16 +572,46 @@ public class DownstreamCreator
 
   public String getOrSetTopic(int sourceId, String topic)
       throws RestApiException, ConfigInvalidException {
+    return getOrSetTopic(newLookupContext(), sourceId, topic);
+  }
+
+  private String getOrSetTopic(LookupContext lookups, int sourceId, String topic)
+      throws RestApiException, ConfigInvalidException {
     try (ManualRequestContext ctx = oneOffRequestContext.openAs(config.getContextUserId())) {
       if (isNullOrEmpty(topic)) {
         topic = "am-" + UUID.randomUUID();
         log.debug("Setting original change {} topic to {}", sourceId, topic);
-        gApi.changes().id(sourceId).topic(topic);
+        setOwnTopic(sourceId, topic);
+        lookups.setTopic(sourceId, topic);
       }
       return topic;
     }
   }
 
+  /**
+   * Sets the topic of a change without handling the resulting topic edited event, which would
+   * either look for downstream merges under a topic they cannot have, or copy the topic to merges
+   * that already got it with the rest of their tree.
+   *
+   * @param changeNumber Number of the change.
+   * @param topic The topic.
+   * @throws RestApiException
+   */
+  private void setOwnTopic(int changeNumber, String topic) throws RestApiException {
+    Map<Integer, String> edits = OWN_TOPIC_EDITS.get();
+    edits.put(changeNumber, nullToEmpty(topic));
+    try {
+      gApi.changes().id(changeNumber).topic(topic);
+    } finally {
+      edits.remove(changeNumber);
+    }
+  }
+
+  private static boolean isOwnTopicEdit(ChangeInfo change) {
+    String topic = OWN_TOPIC_EDITS.get().get(change._number);
+    return topic != null && topic.equals(nullToEmpty(change.topic));
+  }
+
   /**
    * Creates merges downstream, and votes on the automerge label if we have a failed merge.
    *
@@ -298,11 +624,18 @@ public class DownstreamCreator
   public void createMergesAndHandleConflicts(MultipleDownstreamMergeInput mdsMergeInput)
       throws RestApiException, ConfigInvalidException, InvalidQueryParameterException,
           StorageException {
+    createMergesAndHandleConflicts(newLookupContext(), mdsMergeInput);
+  }
+
+  private void createMergesAndHandleConflicts(
+      LookupContext lookups, MultipleDownstreamMergeInput mdsMergeInput)
+      throws RestApiException, ConfigInvalidException, InvalidQueryParameterException,
+          StorageException {
     try (ManualRequestContext ctx = oneOffRequestContext.openAs(config.getContextUserId())) {
       ReviewInput reviewInput = new ReviewInput();
       Map<String, Short> labels = new HashMap<>();
       try {
-        createDownstreamMerges(mdsMergeInput);
+        createDownstreamMerges(lookups, mdsMergeInput);
 
         reviewInput.message =
             "Automerging change "
@@ -323,14 +656,14 @@ public class DownstreamCreator
       reviewInput.labels = labels;
 
       // Make the vote on the original change
-      ChangeInfo originalChange =
-          getOriginalChange(mdsMergeInput.changeNumber, mdsMergeInput.currentRevision);
+      int originalChange =
+          getOriginalChange(lookups, mdsMergeInput.changeNumber, mdsMergeInput.currentRevision);
       // if this fails, i.e. -2 is restricted, catch it and still post message without a vote.
       try {
-        gApi.changes().id(originalChange._number).revision(CURRENT).review(reviewInput);
+        gApi.changes().id(originalChange).revision(CURRENT).review(reviewInput);
       } catch (AuthException e) {
         reviewInput.labels = null;
-        gApi.changes().id(originalChange._number).revision(CURRENT).review(reviewInput);
+        gApi.changes().id(originalChange).revision(CURRENT).review(reviewInput);
       }
     }
   }
@@ -338,6 +671,7 @@ public class DownstreamCreator
   /**
    * Creates merge downstream.
    *
+   * @param lookups Lookups shared while handling the event.
    * @param mdsMergeInput Input containing the downstream branch map and source change ID.
    * @throws RestApiException Throws if we fail a REST API call.
    * @throws FailedMergeException Throws if we get a merge conflict when merging downstream.
@@ -345,66 +679,37 @@ public class DownstreamCreator
    * @throws InvalidQueryParameterException Throws if we attempt to add an invalid value to query.
    * @throws StorageException Throws if we fail to open the request context
    */
-  private void createDownstreamMerges(MultipleDownstreamMergeInput mdsMergeInput)
+  private void createDownstreamMerges(
+      LookupContext lookups, MultipleDownstreamMergeInput mdsMergeInput)
       throws RestApiException, FailedMergeException, ConfigInvalidException,
           InvalidQueryParameterException, StorageException {
     try (ManualRequestContext ctx = oneOffRequestContext.openAs(config.getContextUserId())) {
+      // The branches may be merged to on other threads, which have no current user.
+      Account.Id contextUserId = config.getContextUserId();
+      List<String> downstreamBranches = new ArrayList<>(mdsMergeInput.dsBranchMap.keySet());
+      List<Callable<String>> merges = new ArrayList<>();
+      for (String downstreamBranch : downstreamBranches) {
+        merges.add(
+            () -> {
+              try (ManualRequestContext branchCtx = oneOffRequestContext.openAs(contextUserId)) {
+                return createDownstreamMerge(lookups, mdsMergeInput, downstreamBranch);
+              }
+            });
+      }
+      List<Future<String>> results;
+      try {
+        results = workQueue.invokeAll(merges);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new StorageException("Interrupted while merging downstream", e);
+      }
+
       // Map from branch to error message
       Map<String, String> failedMergeBranchMap = new TreeMap<>();
-
-      List<Integer> existingDownstream;
-      for (String downstreamBranch : mdsMergeInput.dsBranchMap.keySet()) {
-        // If there are existing downstream merges, update them
-        // Otherwise, create them.
-        boolean createDownstreams = true;
-        if (mdsMergeInput.obsoleteRevision != null) {
-          existingDownstream =
-              getExistingMergesOnBranch(
-                  mdsMergeInput.obsoleteRevision, mdsMergeInput.topic, downstreamBranch);
-          if (!existingDownstream.isEmpty()) {
-            log.debug(
-                "Attempting to update downstream merge of {} on branch {}",
-                mdsMergeInput.currentRevision,
-                downstreamBranch);
-            // existingDownstream should almost always be of length one, but
-            // it's possible to construct it so that it's not
-            for (Integer dsChangeNumber : existingDownstream) {
-              try {
-                updateDownstreamMerge(
-                    mdsMergeInput.currentRevision,
-                    mdsMergeInput.subject,
-                    dsChangeNumber,
-                    mdsMergeInput.dsBranchMap.get(downstreamBranch),
-                    mdsMergeInput.changeNumber,
-                    downstreamBranch);
-                createDownstreams = false;
-              } catch (MergeConflictException e) {
-                failedMergeBranchMap.put(downstreamBranch, e.getMessage());
-                log.debug(
-                    "Abandoning existing, obsolete {} due to merge conflict.", dsChangeNumber);
-                abandonChange(dsChangeNumber);
-              }
-            }
-          }
-        }
-        if (createDownstreams) {
-          log.debug(
-              "Attempting to create downstream merge of {} on branch {}",
-              mdsMergeInput.currentRevision,
-              downstreamBranch);
-          SingleDownstreamMergeInput sdsMergeInput = new SingleDownstreamMergeInput();
-          sdsMergeInput.currentRevision = mdsMergeInput.currentRevision;
-          sdsMergeInput.changeNumber = mdsMergeInput.changeNumber;
-          sdsMergeInput.project = mdsMergeInput.project;
-          sdsMergeInput.topic = mdsMergeInput.topic;
-          sdsMergeInput.subject = mdsMergeInput.subject;
-          sdsMergeInput.downstreamBranch = downstreamBranch;
-          sdsMergeInput.doMerge = mdsMergeInput.dsBranchMap.get(downstreamBranch);
-          try {
-            createSingleDownstreamMerge(sdsMergeInput);
-          } catch (MergeConflictException e) {
-            failedMergeBranchMap.put(downstreamBranch, e.getMessage());
-          }
+      for (int i = 0; i < downstreamBranches.size(); i++) {
+        String error = getMergeResult(results.get(i));
+        if (error != null) {
+          failedMergeBranchMap.put(downstreamBranches.get(i), error);
         }
       }
 
@@ -426,9 +731,100 @@ public class DownstreamCreator
     }
   }
 
+  /**
+   * Creates or updates the merge of a change to a single downstream branch.
+   *
+   * @param lookups Lookups shared while handling the event.
+   * @param mdsMergeInput Input containing the downstream branch map and source change ID.
+   * @param downstreamBranch Branch to merge to.
+   * @return The merge conflict message if merging failed, null otherwise.
+   * @throws RestApiException Throws if we fail a REST API call.
+   * @throws ConfigInvalidException Throws if we get a malformed config file
+   * @throws InvalidQueryParameterException Throws if we attempt to add an invalid value to query.
+   * @throws StorageException Throws if we fail to open the request context
+   */
+  private String createDownstreamMerge(
+      LookupContext lookups, MultipleDownstreamMergeInput mdsMergeInput, String downstreamBranch)
+      throws RestApiException, ConfigInvalidException, InvalidQueryParameterException,
+          StorageException {
+    String error = null;
+    // If there are existing downstream merges, update them
+    // Otherwise, create them.
+    boolean createDownstreams = true;
+    if (mdsMergeInput.obsoleteRevision != null) {
+      List<Integer> existingDownstream =
+          getExistingMergesOnBranch(
+              lookups, mdsMergeInput.obsoleteRevision, mdsMergeInput.topic, downstreamBranch);
+      if (!existingDownstream.isEmpty()) {
+        log.debug(
+            "Attempting to update downstream merge of {} on branch {}",
+            mdsMergeInput.currentRevision,
+            downstreamBranch);
+        // existingDownstream should almost always be of length one, but
+        // it's possible to construct it so that it's not
+        for (Integer dsChangeNumber : existingDownstream) {
+          try {
+            updateDownstreamMerge(
+                lookups,
+                mdsMergeInput.currentRevision,
+                mdsMergeInput.subject,
+                dsChangeNumber,
+                mdsMergeInput.dsBranchMap.get(downstreamBranch),
+                mdsMergeInput.changeNumber,
+                downstreamBranch);
+            createDownstreams = false;
+          } catch (MergeConflictException e) {
+            error = e.getMessage();
+            log.debug("Abandoning existing, obsolete {} due to merge conflict.", dsChangeNumber);
+            abandonChange(dsChangeNumber);
+          }
+        }
+      }
+    }
+    if (createDownstreams) {
+      log.debug(
+          "Attempting to create downstream merge of {} on branch {}",
+          mdsMergeInput.currentRevision,
+          downstreamBranch);
+      SingleDownstreamMergeInput sdsMergeInput = new SingleDownstreamMergeInput();
+      sdsMergeInput.currentRevision = mdsMergeInput.currentRevision;
+      sdsMergeInput.changeNumber = mdsMergeInput.changeNumber;
+      sdsMergeInput.project = mdsMergeInput.project;
+      sdsMergeInput.topic = mdsMergeInput.topic;
+      sdsMergeInput.subject = mdsMergeInput.subject;
+      sdsMergeInput.downstreamBranch = downstreamBranch;
+      sdsMergeInput.doMerge = mdsMergeInput.dsBranchMap.get(downstreamBranch);
+      try {
+        createSingleDownstreamMerge(lookups, sdsMergeInput);
+      } catch (MergeConflictException e) {
+        error = e.getMessage();
+      }
+    }
+    return error;
+  }
+
+  // Returns the result of a finished merge, rethrowing whatever it failed with.
+  private static String getMergeResult(Future<String> result)
+      throws RestApiException, ConfigInvalidException, InvalidQueryParameterException {
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new StorageException("Interrupted while merging downstream", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      Throwables.throwIfInstanceOf(cause, RestApiException.class);
+      Throwables.throwIfInstanceOf(cause, ConfigInvalidException.class);
+      Throwables.throwIfInstanceOf(cause, InvalidQueryParameterException.class);
+      Throwables.throwIfUnchecked(cause);
+      throw new StorageException(cause);
+    }
+  }
+
   /**
    * Get change IDs of the immediately downstream changes of the revision on the branch.
    *
+   * @param lookups Lookups shared while handling the event.
    * @param upstreamRevision Revision of the original change.
    * @param topic Topic of the original change.
    * @param downstreamBranch Branch to check for existing merge CLs.
@@ -439,44 +835,33 @@ public class DownstreamCreator
    * @throws StorageException Throws if we fail to open the request context
    */
   private List<Integer> getExistingMergesOnBranch(
-      String upstreamRevision, String topic, String downstreamBranch)
+      LookupContext lookups, String upstreamRevision, String topic, String downstreamBranch)
       throws RestApiException, InvalidQueryParameterException, StorageException,
           ConfigInvalidException {
     try (ManualRequestContext ctx = oneOffRequestContext.openAs(config.getContextUserId())) {
-      List<Integer> downstreamChangeNumbers = new ArrayList<>();
-      List<ChangeInfo> changes = getChangesInTopicAndBranch(topic, downstreamBranch);
-
-      for (ChangeInfo change : changes) {
-        String changeRevision = change.currentRevision;
-        RevisionInfo revision = change.revisions.get(changeRevision);
-        List<CommitInfo> parents = revision.commit.parents;
-        if (parents.size() > 1) {
-          String secondParent = parents.get(1).commit;
-          if (secondParent.equals(upstreamRevision)) {
-            downstreamChangeNumbers.add(change._number);
-          }
-        }
-      }
-      return downstreamChangeNumbers;
+      return lookups.getMerges(topic, upstreamRevision, downstreamBranch);
     }
   }
 
   /**
    * Create a single downstream merge.
    *
+   * @param lookups Lookups shared while handling the event.
    * @param sdsMergeInput Input containing metadata for the merge.
    * @throws RestApiException
    * @throws ConfigInvalidException
    * @throws InvalidQueryParameterException
    * @throws StorageException
    */
-  private void createSingleDownstreamMerge(SingleDownstreamMergeInput sdsMergeInput)
+  private void createSingleDownstreamMerge(
+      LookupContext lookups, SingleDownstreamMergeInput sdsMergeInput)
       throws RestApiException, ConfigInvalidException, InvalidQueryParameterException,
           StorageException {
     try (ManualRequestContext ctx = oneOffRequestContext.openAs(config.getContextUserId())) {
-      String currentTopic = getOrSetTopic(sdsMergeInput.changeNumber, sdsMergeInput.topic);
+      String currentTopic =
+          getOrSetTopic(lookups, sdsMergeInput.changeNumber, sdsMergeInput.topic);
 
-      if (isAlreadyMerged(sdsMergeInput, currentTopic)) {
+      if (isAlreadyMerged(lookups, sdsMergeInput, currentTopic)) {
         log.info(
             "Commit {} already merged into {}, not automerging again.",
             sdsMergeInput.currentRevision,
@@ -500,7 +885,8 @@ public class DownstreamCreator
 
       downstreamChangeInput.baseChange =
           getBaseChangeId(
-              getChangeParents(sdsMergeInput.changeNumber, sdsMergeInput.currentRevision),
+              lookups,
+              getChangeParents(lookups, sdsMergeInput.changeNumber, sdsMergeInput.currentRevision),
               sdsMergeInput.downstreamBranch);
 
       if (!sdsMergeInput.doMerge) {
@@ -526,12 +912,13 @@ public class DownstreamCreator
    * second parent is A, and B' is the change whose second parent is B, the first parent of B'
    * should be A'.
    *
+   * @param lookups Lookups shared while handling the event.
    * @param parents Parent commit SHAs of the change
    * @return The base change ID that the change should be based off of, null if there is none.
    * @throws InvalidQueryParameterException
    * @throws RestApiException
    */
-  private String getBaseChangeId(List<String> parents, String branch)
+  private String getBaseChangeId(LookupContext lookups, List<String> parents, String branch)
       throws InvalidQueryParameterException, RestApiException {
     if (parents.isEmpty()) {
       log.info("No base change id for change with no parents.");
@@ -543,19 +930,27 @@ public class DownstreamCreator
       return null;
     }
     // 2) query that topic and use that to find A'
-    List<ChangeInfo> changesInTopic = getChangesInTopicAndBranch(firstParentTopic, branch);
-    String firstParent = parents.get(0);
-    for (ChangeInfo change : changesInTopic) {
-      List<CommitInfo> topicChangeParents =
-          change.revisions.get(change.currentRevision).commit.parents;
-      if (topicChangeParents.size() > 1 && topicChangeParents.get(1).commit.equals(firstParent)) {
-        return String.valueOf(change._number);
-      }
-    }
-    return null;
+    List<Integer> merges = lookups.getMerges(firstParentTopic, parents.get(0), branch);
+    return merges.isEmpty() ? null : String.valueOf(merges.get(0));
   }
 
-  private void automergeChanges(ChangeInfo change, RevisionInfo revisionInfo)
+  /**
+   * Creates or updates the downstream merges of a revision.
+   *
+   * @param lookups Lookups shared while handling the event.
+   * @param change The change to merge downstream.
+   * @param revisionInfo The revision to merge downstream.
+   * @param firstPatchSetNumber Oldest patch set this revision replaces without it having been
+   *     merged downstream, or the number of the revision itself. The existing downstream merges to
+   *     update are those of the patch set before it.
+   * @throws RestApiException
+   * @throws IOException
+   * @throws ConfigInvalidException
+   * @throws InvalidQueryParameterException
+   * @throws StorageException
+   */
+  private void automergeChanges(
+      LookupContext lookups, ChangeInfo change, RevisionInfo revisionInfo, int firstPatchSetNumber)
       throws RestApiException, IOException, ConfigInvalidException, InvalidQueryParameterException,
           StorageException {
     String currentRevision = revisionInfo.commit.commit;
@@ -577,23 +972,22 @@ public class DownstreamCreator
     }
     log.debug("Automerging change {} from branch {}", change.id, change.branch);
 
-    ChangeApi currentChange = gApi.changes().id(change._number);
-    String previousRevision = getPreviousRevision(currentChange, revisionInfo._number);
+    String previousRevision = getPreviousRevision(lookups, change._number, firstPatchSetNumber);
 
     MultipleDownstreamMergeInput mdsMergeInput = new MultipleDownstreamMergeInput();
     mdsMergeInput.dsBranchMap = dsBranchMap;
     mdsMergeInput.changeNumber = change._number;
     mdsMergeInput.patchsetNumber = revisionInfo._number;
     mdsMergeInput.project = change.project;
-    mdsMergeInput.topic = getOrSetTopic(change._number, change.topic);
+    mdsMergeInput.topic = getOrSetTopic(lookups, change._number, change.topic);
     mdsMergeInput.subject = change.subject;
     mdsMergeInput.obsoleteRevision = previousRevision;
     mdsMergeInput.currentRevision = currentRevision;
 
-    createMergesAndHandleConflicts(mdsMergeInput);
+    createMergesAndHandleConflicts(lookups, mdsMergeInput);
   }
 
-  private void abandonDownstream(ChangeInfo change, String revision)
+  private void abandonDownstream(LookupContext lookups, ChangeInfo change, String revision)
       throws ConfigInvalidException, StorageException {
     try {
       Set<String> downstreamBranches = config.getDownstreamBranches(change.branch, change.project);
@@ -604,7 +998,7 @@ public class DownstreamCreator
 
       for (String downstreamBranch : downstreamBranches) {
         List<Integer> existingDownstream =
-            getExistingMergesOnBranch(revision, change.topic, downstreamBranch);
+            getExistingMergesOnBranch(lookups, revision, change.topic, downstreamBranch);
         log.debug("Abandoning existing downstreams: {}", existingDownstream);
         for (Integer changeNumber : existingDownstream) {
           abandonChange(changeNumber);
@@ -615,19 +1009,109 @@ public class DownstreamCreator
     }
   }
 
-  private void updateVote(ChangeInfo change, String label, short vote) throws RestApiException {
-    log.debug("Giving {} for label {} to {}", vote, label, change.id);
+  /**
+   * Returns the highest vote on each label of a change, with the votes we are about to give in
+   * place of our votes on those labels.
+   *
+   * @param change The change, with detailed labels.
+   * @param ownVotes The votes we are about to give the change, by label.
+   * @param contextUserId The user we vote as.
+   * @return The highest vote by label, for labels with any vote.
+   */
+  private static Map<String, Integer> getMaxVotes(
+      ChangeInfo change, Map<String, Integer> ownVotes, Account.Id contextUserId) {
+    Map<String, Integer> maxVotes = new HashMap<>(ownVotes);
+    if (change.labels == null) {
+      return maxVotes;
+    }
+    for (Map.Entry<String, LabelInfo> labelEntry : change.labels.entrySet()) {
+      if (labelEntry.getValue().all == null) {
+        continue;
+      }
+      boolean replaced = ownVotes.containsKey(labelEntry.getKey());
+      OptionalInt maxVote =
+          labelEntry.getValue().all.stream()
+              .filter(o -> o.value != null)
+              .filter(
+                  o ->
+                      !replaced
+                          || o._accountId == null
+                          || o._accountId != contextUserId.get())
+              .mapToInt(i -> i.value)
+              .max();
+      if (maxVote.isPresent()) {
+        maxVotes.merge(labelEntry.getKey(), maxVote.getAsInt(), Math::max);
+      }
+    }
+    return maxVotes;
+  }
+
+  /**
+   * Returns the given account's vote on a label of a change.
+   *
+   * @param change Change fetched with detailed labels.
+   * @param label Name of the label.
+   * @param accountId The account.
+   * @return The vote, or 0 if the account has not voted.
+   */
+  private static int getVote(ChangeInfo change, String label, Account.Id accountId) {
+    LabelInfo labelInfo = change.labels != null ? change.labels.get(label) : null;
+    if (labelInfo == null || labelInfo.all == null) {
+      return 0;
+    }
+    for (ApprovalInfo approval : labelInfo.all) {
+      if (approval._accountId != null
+          && approval._accountId == accountId.get()
+          && approval.value != null) {
+        return approval.value;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Votes on the given labels of a change in a single review.
+   *
+   * <p>If we may not vote on one of the labels, or it does not apply, the whole review is rejected,
+   * so each label is then voted on separately and the ones we may not vote on are skipped.
+   *
+   * @param change The change.
+   * @param votes Vote for each label.
+   * @throws RestApiException
+   */
+  private void updateVotes(ChangeInfo change, Map<String, Short> votes) throws RestApiException {
+    log.debug("Giving {} to {}", votes, change.id);
+    try {
+      review(change, votes);
+    } catch (AuthException | BadRequestException e) {
+      if (votes.size() == 1 && e instanceof AuthException) {
+        log.error("Automerger could not set label, but still continuing.", e);
+        return;
+      } else if (votes.size() == 1) {
+        throw e;
+      }
+      for (Map.Entry<String, Short> vote : votes.entrySet()) {
+        try {
+          review(change, ImmutableMap.of(vote.getKey(), vote.getValue()));
+        } catch (AuthException labelException) {
+          log.error("Automerger could not set label, but still continuing.", labelException);
+        }
+      }
+    }
+  }
+
+  private void review(ChangeInfo change, Map<String, Short> votes) throws RestApiException {
     // Vote on all downstream branches unless merge conflict.
     ReviewInput reviewInput = new ReviewInput();
-    Map<String, Short> labels = new HashMap<>();
-    labels.put(label, vote);
-    reviewInput.labels = labels;
+    reviewInput.labels = votes;
     reviewInput.notify = NotifyHandling.NONE;
     reviewInput.tag = AUTOMERGER_TAG;
+    Set<Integer> ownVotes = OWN_VOTES.get();
+    ownVotes.add(change._number);
     try {
       gApi.changes().id(change.id).revision(CURRENT).review(reviewInput);
-    } catch (AuthException e) {
-      log.error("Automerger could not set label, but still continuing.", e);
+    } finally {
+      ownVotes.remove(change._number);
     }
   }
 
@@ -644,6 +1128,7 @@ public class DownstreamCreator
   }
 
   private void updateDownstreamMerge(
+      LookupContext lookups,
       String newParentRevision,
       String upstreamSubject,
       Integer sourceNum,
@@ -668,27 +1153,33 @@ public class DownstreamCreator
 
     mergePatchSetInput.baseChange =
         getBaseChangeId(
-            getChangeParents(upstreamChangeNumber, newParentRevision), downstreamBranch);
+            lookups,
+            getChangeParents(lookups, upstreamChangeNumber, newParentRevision),
+            downstreamBranch);
 
     ChangeApi originalChange = gApi.changes().id(sourceNum);
 
-    if (originalChange.info().status == ChangeStatus.ABANDONED) {
+    if (lookups.getChange(sourceNum, EnumSet.noneOf(ListChangesOption.class)).status
+        == ChangeStatus.ABANDONED) {
       RestoreInput restoreInput = new RestoreInput();
       restoreInput.message = "Restoring change due to upstream automerge.";
       originalChange.restore(restoreInput);
     }
 
+    lookups.invalidate(sourceNum);
     originalChange.createMergePatchSet(mergePatchSetInput);
   }
 
-  private String getPreviousRevision(ChangeApi change, int currentPatchSetNumber)
+  private String getPreviousRevision(
+      LookupContext lookups, int changeNumber, int currentPatchSetNumber)
       throws RestApiException {
     String previousRevision = null;
     int maxPatchSetNum = 0;
     if (currentPatchSetNumber > 1) {
-      // Get sha of patch set with highest number we can see
+      // Get sha of patch set with highest number we can see. The commits are not needed here, but
+      // fetching them too lets getChangeParents reuse the result.
       Map<String, RevisionInfo> revisionMap =
-          change.get(EnumSet.of(ListChangesOption.ALL_REVISIONS)).revisions;
+          lookups.getChange(changeNumber, REVISIONS_AND_COMMIT).revisions;
       for (Map.Entry<String, RevisionInfo> revisionEntry : revisionMap.entrySet()) {
         int revisionPatchNumber = revisionEntry.getValue()._number;
         if (revisionPatchNumber > maxPatchSetNum && revisionPatchNumber < currentPatchSetNumber) {
@@ -700,29 +1191,69 @@ public class DownstreamCreator
     return previousRevision;
   }
 
-  private ChangeInfo getOriginalChange(int changeNumber, String currentRevision)
+  /**
+   * Follows a downstream merge up to the change it was originally merged from.
+   *
+   * <p>Each hop is a change whose second parent is the current revision of an open change in the
+   * same topic. Resolutions are cached, and a hop that was resolved before ends the walk.
+   *
+   * @param lookups Lookups shared while handling the event.
+   * @param changeNumber Number of the change to start from.
+   * @param currentRevision Current revision of that change.
+   * @return Number of the original change, which may be the given change.
+   * @throws RestApiException
+   * @throws InvalidQueryParameterException
+   */
+  private int getOriginalChange(LookupContext lookups, int changeNumber, String currentRevision)
       throws RestApiException, InvalidQueryParameterException {
-    List<String> parents = getChangeParents(changeNumber, currentRevision);
-    if (parents.size() >= 2) {
+    AncestryCache.Resolution cached =
+        ancestryCache.getOriginalChange(changeNumber, currentRevision);
+    if (cached != null) {
+      return cached.originalChange;
+    }
+    long sequence = ancestryCache.getSequence();
+    Set<Integer> changes = new HashSet<>();
+    Set<String> commits = new HashSet<>();
+    Set<String> searchedTopics = new HashSet<>();
+    int originalChange = changeNumber;
+    String revision = currentRevision;
+    while (true) {
+      changes.add(originalChange);
+      commits.add(revision);
+      List<String> parents = getChangeParents(lookups, originalChange, revision);
+      if (parents.size() < 2) {
+        break;
+      }
       String secondParentRevision = parents.get(1);
-      String topic = gApi.changes().id(changeNumber).topic();
-      List<ChangeInfo> changesInTopic = getChangesInTopic(topic);
-      for (ChangeInfo change : changesInTopic) {
-        if (change.currentRevision.equals(secondParentRevision)) {
-          return getOriginalChange(change._number, secondParentRevision);
-        }
+      commits.add(secondParentRevision);
+      // Fetched along with the parents.
+      String topic = nullToEmpty(lookups.getChange(originalChange, REVISIONS_AND_COMMIT).topic);
+      searchedTopics.add(topic);
+      ChangeSummary change = lookups.getByCurrentRevision(topic, secondParentRevision);
+      if (change == null) {
+        break;
+      }
+      originalChange = change.getChangeNumber();
+      revision = secondParentRevision;
+      cached = ancestryCache.getOriginalChange(originalChange, revision);
+      if (cached != null) {
+        changes.addAll(cached.changes);
+        commits.addAll(cached.commits);
+        searchedTopics.addAll(cached.searchedTopics);
+        originalChange = cached.originalChange;
+        break;
       }
     }
-    return gApi.changes().id(changeNumber).get();
+    ancestryCache.putOriginalChange(
+        changeNumber, currentRevision, originalChange, changes, commits, searchedTopics, sequence);
+    return originalChange;
   }
 
-  private List<String> getChangeParents(int changeNumber, String currentRevision)
-      throws RestApiException {
-    ChangeApi change = gApi.changes().id(changeNumber);
+  private List<String> getChangeParents(
+      LookupContext lookups, int changeNumber, String currentRevision) throws RestApiException {
     List<String> parents = new ArrayList<>();
     Map<String, RevisionInfo> revisionMap =
-        change.get(EnumSet.of(ListChangesOption.ALL_REVISIONS, ListChangesOption.CURRENT_COMMIT))
-            .revisions;
+        lookups.getChange(changeNumber, REVISIONS_AND_COMMIT).revisions;
     List<CommitInfo> changeParents = revisionMap.get(currentRevision).commit.parents;
     for (CommitInfo commit : changeParents) {
       parents.add(commit.commit);
@@ -739,6 +1270,11 @@ public class DownstreamCreator
   }
 
   private String getTopic(String revision) throws InvalidQueryParameterException, RestApiException {
+    AncestryCache.Resolution cached = ancestryCache.getTopic(revision);
+    if (cached != null) {
+      return cached.topic;
+    }
+    long sequence = ancestryCache.getSequence();
     QueryBuilder queryBuilder = new QueryBuilder();
     queryBuilder.addParameter("commit", revision);
     List<ChangeInfo> changes =
@@ -746,59 +1282,25 @@ public class DownstreamCreator
             .query(queryBuilder.get())
             .withOption(ListChangesOption.CURRENT_REVISION)
             .get();
-    if (!changes.isEmpty()) {
-      for (ChangeInfo change : changes) {
-        if (change.currentRevision.equals(revision) && !"".equals(change.topic)) {
-          return change.topic;
-        }
+    String topic = null;
+    Set<Integer> changeNumbers = new HashSet<>();
+    for (ChangeInfo change : changes) {
+      changeNumbers.add(change._number);
+      if (topic == null && change.currentRevision.equals(revision) && !"".equals(change.topic)) {
+        topic = change.topic;
       }
     }
-    return null;
-  }
-
-  private QueryBuilder constructTopicQuery(String topic) throws InvalidQueryParameterException {
-    QueryBuilder queryBuilder = new QueryBuilder();
-    queryBuilder.addParameter("topic", topic);
-    queryBuilder.addParameter("status", "open");
-    return queryBuilder;
-  }
-
-  private List<ChangeInfo> getChangesInTopic(String topic)
-      throws InvalidQueryParameterException, RestApiException {
-    QueryBuilder queryBuilder = constructTopicQuery(topic);
-    return gApi.changes()
-        .query(queryBuilder.get())
-        .withOptions(ListChangesOption.ALL_REVISIONS, ListChangesOption.CURRENT_COMMIT)
-        .get();
-  }
-
-  private List<ChangeInfo> getChangesInTopicAndBranch(String topic, String downstreamBranch)
-      throws InvalidQueryParameterException, RestApiException {
-    QueryBuilder queryBuilder = constructTopicQuery(topic);
-    queryBuilder.addParameter("branch", downstreamBranch);
-    return gApi.changes()
-        .query(queryBuilder.get())
-        .withOptions(ListChangesOption.ALL_REVISIONS, ListChangesOption.CURRENT_COMMIT)
-        .get();
+    ancestryCache.putTopic(revision, topic, changeNumbers, sequence);
+    return topic;
   }
 
-  private boolean isAlreadyMerged(SingleDownstreamMergeInput sdsMergeInput, String currentTopic)
+  private boolean isAlreadyMerged(
+      LookupContext lookups, SingleDownstreamMergeInput sdsMergeInput, String currentTopic)
       throws InvalidQueryParameterException, RestApiException {
     // If we've already merged this commit to this branch, don't do it again.
-    List<ChangeInfo> changes =
-        getChangesInTopicAndBranch(currentTopic, sdsMergeInput.downstreamBranch);
-    for (ChangeInfo change : changes) {
-      if (change.branch.equals(sdsMergeInput.downstreamBranch)) {
-        List<CommitInfo> parents = change.revisions.get(change.currentRevision).commit.parents;
-        if (parents.size() > 1) {
-          String secondParent = parents.get(1).commit;
-          if (secondParent.equals(sdsMergeInput.currentRevision)) {
-            return true;
-          }
-        }
-      }
-    }
-    return false;
+    return !lookups
+        .getMerges(currentTopic, sdsMergeInput.currentRevision, sdsMergeInput.downstreamBranch)
+        .isEmpty();
   }
 
   /**
@@ -0,0 +1,217 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.automerger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.extensions.client.ChangeStatus;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.extensions.common.RevisionInfo;
+import com.google.gerrit.extensions.events.ChangeAbandonedListener;
+import com.google.gerrit.extensions.events.ChangeDeletedListener;
+import com.google.gerrit.extensions.events.ChangeMergedListener;
+import com.google.gerrit.extensions.events.ChangeRestoredListener;
+import com.google.gerrit.extensions.events.RevisionCreatedListener;
+import com.google.gerrit.extensions.events.TopicEditedListener;
+import com.google.inject.Singleton;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Index from an upstream revision to the open changes that merge it, by branch and topic.
+ *
+ * <p>The index is kept up to date by change events, and filled in from every topic the automerger
+ * queries, so it starts out empty when the plugin is loaded and covers the active topics soon
+ * after. It can miss changes, for example ones uploaded while the plugin was not loaded, so a
+ * lookup that finds nothing must fall back to a query. It can also keep changes that were
+ * abandoned, merged or rebased while it missed their events, so a change it does find must be
+ * fetched and checked with {@link #verify} before anything relies on it.
+ */
+@Singleton
+class DownstreamIndex
+    implements ChangeAbandonedListener,
+        ChangeDeletedListener,
+        ChangeMergedListener,
+        ChangeRestoredListener,
+        RevisionCreatedListener,
+        TopicEditedListener {
+  /** An open merge change, reduced to what lookups filter on. */
+  private static class Entry {
+    final int changeNumber;
+    final String branch;
+    final String topic;
+    final String secondParent;
+
+    Entry(int changeNumber, String branch, String topic, String secondParent) {
+      this.changeNumber = changeNumber;
+      this.branch = branch;
+      this.topic = topic;
+      this.secondParent = secondParent;
+    }
+  }
+
+  // All maps are guarded by this.
+  private final Map<Integer, Entry> byChange = new HashMap<>();
+  private final Map<String, Set<Entry>> bySecondParent = new HashMap<>();
+  // Change numbers by topic, so a topic can be refreshed without going through every entry.
+  private final Map<String, Set<Integer>> byTopic = new HashMap<>();
+
+  @Override
+  public void onRevisionCreated(RevisionCreatedListener.Event event) {
+    update(event.getChange(), event.getRevision());
+  }
+
+  @Override
+  public void onChangeRestored(ChangeRestoredListener.Event event) {
+    update(event.getChange(), event.getRevision());
+  }
+
+  @Override
+  public void onChangeAbandoned(ChangeAbandonedListener.Event event) {
+    remove(event.getChange()._number);
+  }
+
+  @Override
+  public void onChangeMerged(ChangeMergedListener.Event event) {
+    remove(event.getChange()._number);
+  }
+
+  @Override
+  public void onChangeDeleted(ChangeDeletedListener.Event event) {
+    remove(event.getChange()._number);
+  }
+
+  @Override
+  public synchronized void onTopicEdited(TopicEditedListener.Event event) {
+    Entry entry = byChange.get(event.getChange()._number);
+    if (entry != null) {
+      put(new Entry(entry.changeNumber, entry.branch, event.getChange().topic, entry.secondParent));
+    }
+  }
+
+  /**
+   * Returns the open changes on the given branch and in the given topic that merge the given
+   * revision.
+   *
+   * @param upstreamRevision Revision that must be the second parent of the current revision.
+   * @param branch Branch of the changes.
+   * @param topic Topic of the changes.
+   * @return The numbers of the matching changes in ascending order, or an empty list if none are
+   *     known.
+   */
+  synchronized ImmutableList<Integer> getMerges(
+      String upstreamRevision, String branch, String topic) {
+    Set<Integer> merges = new TreeSet<>();
+    for (Entry entry : bySecondParent.getOrDefault(upstreamRevision, Collections.emptySet())) {
+      if (entry.branch.equals(branch) && Objects.equals(entry.topic, topic)) {
+        merges.add(entry.changeNumber);
+      }
+    }
+    return ImmutableList.copyOf(merges);
+  }
+
+  /**
+   * Checks that a change {@link #getMerges} returned still matches the lookup, and records the
+   * change as it is now.
+   *
+   * @param change The change, just fetched with its current revision and commit.
+   * @param upstreamRevision Revision that must be the second parent of the current revision.
+   * @param branch Branch of the change.
+   * @param topic Topic of the change.
+   * @return Whether the change is open, on the branch and in the topic, and merges the revision.
+   */
+  boolean verify(ChangeInfo change, String upstreamRevision, String branch, String topic) {
+    ChangeSummary summary =
+        ChangeSummary.of(
+            change, change.revisions != null ? change.revisions.get(change.currentRevision) : null);
+    update(summary);
+    return summary.getStatus() == ChangeStatus.NEW
+        && branch.equals(summary.getBranch())
+        && Objects.equals(topic, summary.getTopic())
+        && upstreamRevision.equals(summary.getSecondParent());
+  }
+
+  /**
+   * Replaces everything known about a topic with the result of querying its open changes.
+   *
+   * @param topic The topic.
+   * @param changes All open changes in the topic.
+   */
+  synchronized void refreshTopic(String topic, List<ChangeSummary> changes) {
+    Set<Integer> stale = new HashSet<>(byTopic.getOrDefault(topic, Collections.emptySet()));
+    for (ChangeSummary change : changes) {
+      update(change);
+      stale.remove(change.getChangeNumber());
+    }
+    for (int changeNumber : stale) {
+      remove(changeNumber);
+    }
+  }
+
+  /**
+   * Records the current revision of an open change.
+   *
+   * @param change The change.
+   * @param revision The current revision of the change.
+   */
+  void update(ChangeInfo change, RevisionInfo revision) {
+    update(ChangeSummary.of(change, revision));
+  }
+
+  /**
+   * Records the current revision of an open change.
+   *
+   * @param change The change.
+   */
+  synchronized void update(ChangeSummary change) {
+    String secondParent = change.getSecondParent();
+    if (change.getStatus() != ChangeStatus.NEW || secondParent == null) {
+      // Not open, not a merge, or we cannot tell. Either way nothing should find it.
+      remove(change.getChangeNumber());
+      return;
+    }
+    put(
+        new Entry(
+            change.getChangeNumber(), change.getBranch(), change.getTopic(), secondParent));
+  }
+
+  synchronized void remove(int changeNumber) {
+    Entry old = byChange.remove(changeNumber);
+    if (old != null) {
+      Set<Entry> entries = bySecondParent.get(old.secondParent);
+      entries.remove(old);
+      if (entries.isEmpty()) {
+        bySecondParent.remove(old.secondParent);
+      }
+      Set<Integer> inTopic = byTopic.get(old.topic);
+      inTopic.remove(changeNumber);
+      if (inTopic.isEmpty()) {
+        byTopic.remove(old.topic);
+      }
+    }
+  }
+
+  private void put(Entry entry) {
+    remove(entry.changeNumber);
+    byChange.put(entry.changeNumber, entry);
+    bySecondParent.computeIfAbsent(entry.secondParent, k -> new HashSet<>()).add(entry);
+    byTopic.computeIfAbsent(entry.topic, k -> new HashSet<>()).add(entry.changeNumber);
+  }
+}
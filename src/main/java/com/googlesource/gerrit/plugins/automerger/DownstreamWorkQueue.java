@@ -0,0 +1,556 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.automerger;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the work triggered by change events off the thread that fired them.
+ *
+ * <p>Tasks for the same change run one at a time, in the order they were submitted, so that for
+ * example an abandon never overtakes the merge it abandons. Tasks for different changes run
+ * concurrently on up to {@code global.asyncThreads} threads. If {@code global.asyncQueueSize} tasks
+ * are already waiting, a new task is rejected and runs on the calling thread instead, which slows
+ * the caller down rather than dropping the work or growing the queue without bound. A rejected task
+ * for a change that already has tasks waiting or running first waits for all of them to finish, so
+ * the order of a change is kept even then.
+ *
+ * <p>Tasks submitted while handling another task are queued even if the queue is full, since
+ * waiting for room could wait for the very thread doing the submitting.
+ *
+ * <p>New patch sets often arrive in quick succession, and each would otherwise create or rewrite
+ * the downstream merges of the previous one. {@link #submitLatest} holds such work back until the
+ * change has been quiet for {@code global.coalesceWindow}, so only the newest patch set is merged.
+ * Repeated topic edits are collapsed the same way.
+ */
+@Singleton
+class DownstreamWorkQueue implements LifecycleListener {
+  private static final Logger log = LoggerFactory.getLogger(DownstreamWorkQueue.class);
+  // Whether this thread is handling a task.
+  private static final ThreadLocal<Boolean> HANDLING = ThreadLocal.withInitial(() -> false);
+
+  private final ConfigLoader config;
+  private final Timer0 waitLatency;
+  private final Counter0 rejected;
+  private final Counter0 superseded;
+  // Tasks waiting behind the one currently running for each change, guarded by itself.
+  private final Map<Integer, ArrayDeque<Task>> lanes = new HashMap<>();
+  // Latest task for each change still inside its quiet window, guarded by lanes. There is at most
+  // one, since a task of another kind ends the window of the one before it.
+  private final Map<Integer, Delayed> delayed = new HashMap<>();
+  private int pending;
+  private ThreadPoolExecutor executor;
+  private ScheduledThreadPoolExecutor timer;
+  private ThreadPoolExecutor branchExecutor;
+  private boolean stopped;
+
+  private static class Task {
+    final Runnable runnable;
+    final long submitted;
+
+    Task(Runnable runnable) {
+      this.runnable = runnable;
+      this.submitted = System.nanoTime();
+    }
+  }
+
+  private static class Delayed {
+    final String kind;
+    final Runnable runnable;
+    final int threads;
+    final int queueSize;
+    ScheduledFuture<?> future;
+
+    Delayed(String kind, Runnable runnable, int threads, int queueSize) {
+      this.kind = kind;
+      this.runnable = runnable;
+      this.threads = threads;
+      this.queueSize = queueSize;
+    }
+  }
+
+  @Inject
+  DownstreamWorkQueue(ConfigLoader config, MetricMaker metricMaker) {
+    this.config = config;
+    metricMaker.newCallbackMetric(
+        "executor/queue_depth",
+        Integer.class,
+        new Description("Change events waiting to be handled").setGauge().setUnit("events"),
+        this::getQueueDepth);
+    waitLatency =
+        metricMaker.newTimer(
+            "executor/wait_latency",
+            new Description("Time a change event waited before being handled")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS));
+    rejected =
+        metricMaker.newCounter(
+            "executor/rejected_count",
+            new Description("Change events handled inline because the queue was full")
+                .setRate()
+                .setUnit("events"));
+    superseded =
+        metricMaker.newCounter(
+            "executor/superseded_count",
+            new Description("Change events dropped because a newer one arrived")
+                .setRate()
+                .setUnit("events"));
+  }
+
+  @Override
+  public void start() {}
+
+  @Override
+  public void stop() {
+    ThreadPoolExecutor current;
+    ScheduledThreadPoolExecutor currentTimer;
+    Map<Integer, Delayed> flushed;
+    synchronized (lanes) {
+      stopped = true;
+      current = executor;
+      executor = null;
+      currentTimer = timer;
+      timer = null;
+      if (branchExecutor != null) {
+        // Whoever is waiting on a branch runs the ones no thread picked up yet itself.
+        branchExecutor.shutdown();
+        branchExecutor = null;
+      }
+      flushed = new HashMap<>(delayed);
+      delayed.clear();
+    }
+    // Let queued work finish, it was already promised to the users who triggered it. Work still in
+    // its quiet window runs now, after the work already queued for its change.
+    if (currentTimer != null) {
+      for (Delayed task : flushed.values()) {
+        task.future.cancel(false);
+      }
+      currentTimer.shutdown();
+    }
+    for (Map.Entry<Integer, Delayed> entry : flushed.entrySet()) {
+      Delayed task = entry.getValue();
+      enqueue(entry.getKey(), task.threads, task.queueSize, task.runnable, true);
+    }
+    if (current != null) {
+      current.shutdown();
+    }
+  }
+
+  /**
+   * Returns the number of tasks that were submitted but have not started yet.
+   *
+   * @return The number of waiting tasks.
+   */
+  int getQueueDepth() {
+    synchronized (lanes) {
+      return pending;
+    }
+  }
+
+  /**
+   * Runs the given task after every task previously submitted for the same change.
+   *
+   * @param changeNumber Number of the change the task works on.
+   * @param runnable The task. It is responsible for opening its own request context, since the
+   *     thread it runs on has none.
+   */
+  void submit(int changeNumber, Runnable runnable) {
+    int threads;
+    int queueSize;
+    try {
+      threads = config.getAsyncThreads();
+      queueSize = config.getAsyncQueueSize();
+    } catch (ConfigInvalidException e) {
+      log.warn("Failed to read the automerger executor config, handling event inline", e);
+      threads = 0;
+      queueSize = 0;
+    }
+    submit(changeNumber, threads, queueSize, runnable);
+  }
+
+  /**
+   * Like {@link #submit(int, Runnable)}, but waits until the change has gone {@code
+   * global.coalesceWindow} without another call, and only runs the task from the last call.
+   *
+   * <p>Tasks from earlier calls of the same kind are dropped without running. Any other task
+   * submitted for the change, including one of another kind, ends the window early, so the latest
+   * task still runs before it.
+   *
+   * @param changeNumber Number of the change the task works on.
+   * @param kind What the task does; only tasks of the same kind replace each other.
+   * @param runnable The task.
+   */
+  void submitLatest(int changeNumber, String kind, Runnable runnable) {
+    int threads;
+    int queueSize;
+    long windowMillis;
+    try {
+      threads = config.getAsyncThreads();
+      queueSize = config.getAsyncQueueSize();
+      windowMillis = config.getCoalesceWindowMillis();
+    } catch (ConfigInvalidException e) {
+      log.warn("Failed to read the automerger executor config, handling event inline", e);
+      threads = 0;
+      queueSize = 0;
+      windowMillis = 0;
+    }
+    submitLatest(changeNumber, kind, windowMillis, threads, queueSize, runnable);
+  }
+
+  /**
+   * Like {@link #submit(int, int, int, Runnable)}, but only runs the latest task submitted for the
+   * change within the given window.
+   *
+   * @param changeNumber Number of the change the task works on.
+   * @param kind What the task does; only tasks of the same kind replace each other.
+   * @param windowMillis How long the change must go without another call, or 0 to not wait.
+   * @param threads Number of threads to run tasks on, or 0 to run them on the calling thread right
+   *     away, since there is no thread to wait on.
+   * @param queueSize Number of tasks that may wait before new ones run inline.
+   * @param runnable The task.
+   */
+  void submitLatest(
+      int changeNumber,
+      String kind,
+      long windowMillis,
+      int threads,
+      int queueSize,
+      Runnable runnable) {
+    if (windowMillis > 0 && threads > 0) {
+      Delayed flushed = null;
+      synchronized (lanes) {
+        Delayed previous = delayed.get(changeNumber);
+        if (previous != null && !previous.kind.equals(kind)) {
+          flushed = delayed.remove(changeNumber);
+        }
+      }
+      if (flushed != null) {
+        flushed.future.cancel(false);
+        enqueue(changeNumber, flushed.threads, flushed.queueSize, flushed.runnable, false);
+      }
+      Delayed next = new Delayed(kind, runnable, threads, queueSize);
+      synchronized (lanes) {
+        ScheduledThreadPoolExecutor currentTimer = getTimer();
+        if (currentTimer != null) {
+          Delayed previous = delayed.put(changeNumber, next);
+          if (previous != null) {
+            previous.future.cancel(false);
+            superseded.increment();
+            log.debug("Dropping superseded {} of change {}", kind, changeNumber);
+          }
+          next.future =
+              currentTimer.schedule(
+                  () -> runDelayed(changeNumber, next), windowMillis, TimeUnit.MILLISECONDS);
+          return;
+        }
+      }
+    }
+    submit(changeNumber, threads, queueSize, runnable);
+  }
+
+  /**
+   * Runs the given task after every task previously submitted for the same change.
+   *
+   * @param changeNumber Number of the change the task works on.
+   * @param threads Number of threads to run tasks on, or 0 to run them on the calling thread.
+   * @param queueSize Number of tasks that may wait before new ones run on the calling thread.
+   * @param runnable The task.
+   */
+  void submit(int changeNumber, int threads, int queueSize, Runnable runnable) {
+    Delayed flushed;
+    synchronized (lanes) {
+      flushed = delayed.remove(changeNumber);
+    }
+    if (flushed != null) {
+      flushed.future.cancel(false);
+      enqueue(changeNumber, threads, queueSize, flushed.runnable, false);
+    }
+    enqueue(changeNumber, threads, queueSize, runnable, false);
+  }
+
+  // Ends the quiet window of the given task, unless a newer task or another event already did.
+  private void runDelayed(int changeNumber, Delayed task) {
+    synchronized (lanes) {
+      if (delayed.get(changeNumber) != task) {
+        return;
+      }
+      delayed.remove(changeNumber);
+    }
+    // Already accepted when it was submitted, and the timer thread must not wait or run it.
+    enqueue(changeNumber, task.threads, task.queueSize, task.runnable, true);
+  }
+
+  /**
+   * Queues the given task behind the tasks of its change, or runs it here if it cannot be queued.
+   *
+   * @param accepted Whether to queue the task even if the queue is full.
+   */
+  private void enqueue(
+      int changeNumber, int threads, int queueSize, Runnable runnable, boolean accepted) {
+    Task task = new Task(runnable);
+    boolean interrupted = false;
+    try {
+      synchronized (lanes) {
+        boolean counted = false;
+        ArrayDeque<Task> lane;
+        while ((lane = lanes.get(changeNumber)) != null) {
+          if (pending < queueSize || accepted || HANDLING.get()) {
+            // Something is already pending for this change, so queue behind it.
+            lane.add(task);
+            pending++;
+            return;
+          }
+          if (!counted) {
+            rejected.increment();
+            log.warn(
+                "Automerger queue is full ({} events), waiting for busy change {}",
+                pending,
+                changeNumber);
+            counted = true;
+          }
+          // Running it here now would overtake the tasks waiting for the change, and run alongside
+          // the one running for it.
+          try {
+            lanes.wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+        ThreadPoolExecutor current = threads > 0 ? getExecutor(threads) : null;
+        // Claim the change, so that its later tasks queue behind this one wherever it runs.
+        lanes.put(changeNumber, new ArrayDeque<>());
+        pending++;
+        if (current != null && (pending <= queueSize || accepted)) {
+          try {
+            current.execute(() -> runLane(changeNumber, task));
+            return;
+          } catch (RejectedExecutionException e) {
+            // Stopping.
+          }
+        } else if (current != null && !counted) {
+          rejected.increment();
+          log.warn(
+              "Automerger queue is full ({} events), handling change {} inline",
+              pending - 1,
+              changeNumber);
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    // Not configured, stopping, or full. The change was idle, so this is handled right here exactly
+    // as if there were no queue at all.
+    runLane(changeNumber, task);
+  }
+
+  // Called with the lock held.
+  private ThreadPoolExecutor getExecutor(int threads) {
+    if (stopped) {
+      return null;
+    }
+    if (executor == null) {
+      executor =
+          new ThreadPoolExecutor(
+              threads,
+              threads,
+              60,
+              TimeUnit.SECONDS,
+              // Bounded by the pending count, which also covers tasks waiting in a lane.
+              new LinkedBlockingQueue<>(),
+              new ThreadFactoryBuilder()
+                  .setNameFormat("Automerger-%d")
+                  .setDaemon(true)
+                  .build());
+      executor.allowCoreThreadTimeOut(true);
+    } else if (executor.getMaximumPoolSize() != threads) {
+      resize(executor, threads);
+    }
+    return executor;
+  }
+
+  /**
+   * Runs the given tasks concurrently on up to {@code global.branchThreads} threads, and waits for
+   * all of them to finish.
+   *
+   * @param tasks The tasks. Each is responsible for opening its own request context.
+   * @return The futures of the tasks, all of which are done, in the order of the tasks.
+   * @throws InterruptedException if interrupted while waiting for the tasks.
+   */
+  <T> List<Future<T>> invokeAll(List<Callable<T>> tasks) throws InterruptedException {
+    int threads;
+    try {
+      threads = config.getBranchThreads();
+    } catch (ConfigInvalidException e) {
+      log.warn("Failed to read the automerger branch thread config, merging branches serially", e);
+      threads = 1;
+    }
+    return invokeAll(threads, tasks);
+  }
+
+  /**
+   * Runs the given tasks concurrently on up to the given number of threads, and waits for all of
+   * them to finish.
+   *
+   * <p>A task no thread is free for runs on the calling thread, so that running out of threads
+   * slows the caller down rather than queueing work behind other changes.
+   *
+   * @param threads Number of threads to run the tasks on, or 1 to run them on the calling thread.
+   * @param tasks The tasks.
+   * @return The futures of the tasks, all of which are done, in the order of the tasks.
+   * @throws InterruptedException if interrupted while waiting for the tasks.
+   */
+  <T> List<Future<T>> invokeAll(int threads, List<Callable<T>> tasks)
+      throws InterruptedException {
+    ExecutorService current = null;
+    if (threads > 1 && tasks.size() > 1) {
+      synchronized (lanes) {
+        current = getBranchExecutor(threads);
+      }
+    }
+    if (current == null) {
+      return MoreExecutors.newDirectExecutorService().invokeAll(tasks);
+    }
+    List<Callable<T>> handling = new ArrayList<>(tasks.size());
+    for (Callable<T> task : tasks) {
+      handling.add(() -> call(task));
+    }
+    return current.invokeAll(handling);
+  }
+
+  private static <T> T call(Callable<T> task) throws Exception {
+    boolean wasHandling = HANDLING.get();
+    HANDLING.set(true);
+    try {
+      return task.call();
+    } finally {
+      HANDLING.set(wasHandling);
+    }
+  }
+
+  // Called with the lock held.
+  private ThreadPoolExecutor getBranchExecutor(int threads) {
+    if (stopped) {
+      return null;
+    }
+    if (branchExecutor == null) {
+      branchExecutor =
+          new ThreadPoolExecutor(
+              threads,
+              threads,
+              60,
+              TimeUnit.SECONDS,
+              new SynchronousQueue<>(),
+              new ThreadFactoryBuilder()
+                  .setNameFormat("Automerger-Branch-%d")
+                  .setDaemon(true)
+                  .build(),
+              // Unlike CallerRunsPolicy, also runs the task after shutdown, so that no caller
+              // waits forever on a task that was dropped.
+              (r, e) -> r.run());
+      branchExecutor.allowCoreThreadTimeOut(true);
+    } else if (branchExecutor.getMaximumPoolSize() != threads) {
+      resize(branchExecutor, threads);
+    }
+    return branchExecutor;
+  }
+
+  // The core size may never exceed the maximum.
+  private static void resize(ThreadPoolExecutor executor, int threads) {
+    if (threads > executor.getMaximumPoolSize()) {
+      executor.setMaximumPoolSize(threads);
+      executor.setCorePoolSize(threads);
+    } else {
+      executor.setCorePoolSize(threads);
+      executor.setMaximumPoolSize(threads);
+    }
+  }
+
+  // Called with the lock held.
+  private ScheduledThreadPoolExecutor getTimer() {
+    if (stopped) {
+      return null;
+    }
+    if (timer == null) {
+      timer =
+          new ScheduledThreadPoolExecutor(
+              1,
+              new ThreadFactoryBuilder()
+                  .setNameFormat("Automerger-Coalesce-%d")
+                  .setDaemon(true)
+                  .build());
+      timer.setRemoveOnCancelPolicy(true);
+    }
+    return timer;
+  }
+
+  // Runs the given task, then every task queued behind it for the same change.
+  private void runLane(int changeNumber, Task first) {
+    boolean wasHandling = HANDLING.get();
+    HANDLING.set(true);
+    try {
+      Task task = first;
+      while (task != null) {
+        synchronized (lanes) {
+          pending--;
+          lanes.notifyAll();
+        }
+        waitLatency.record(System.nanoTime() - task.submitted, TimeUnit.NANOSECONDS);
+        try {
+          task.runnable.run();
+        } catch (RuntimeException e) {
+          log.error("Automerger failed to handle event for change {}", changeNumber, e);
+        }
+        synchronized (lanes) {
+          task = lanes.get(changeNumber).poll();
+          if (task == null) {
+            lanes.remove(changeNumber);
+            lanes.notifyAll();
+          }
+        }
+      }
+    } finally {
+      HANDLING.set(wasHandling);
+    }
+  }
+}
@@ -0,0 +1,331 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.automerger;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.gerrit.exceptions.StorageException;
+import com.google.gerrit.extensions.api.GerritApi;
+import com.google.gerrit.extensions.client.ListChangesOption;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.extensions.restapi.ResourceNotFoundException;
+import com.google.gerrit.extensions.restapi.RestApiException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lookups shared by everything done while handling a single event.
+ *
+ * <p>Existing merges are looked up in the first page of the topic, which is read once per event
+ * and answers every branch if it holds the whole topic. Otherwise they are looked up in the {@link
+ * DownstreamIndex}, fetching each change it knows to check it, and otherwise queried for directly
+ * with the {@link ParentOperator}. A topic is read a page at a time as far as lookups need, and a
+ * topic that fits on one page is read at most once per event. Changes the automerger makes while
+ * handling the event are not reflected, which is fine because each downstream branch is only
+ * looked up before it is written to.
+ *
+ * <p>Likewise each change is fetched once per set of options; a fetch is also answered by an
+ * earlier one with more options. Callers that modify a change must {@link #invalidate} it, or
+ * update it with {@link #setTopic}.
+ *
+ * <p>A context may be used from several threads at once. No lock is held while reading: the first
+ * caller to need a result reads it, and callers that need it meanwhile wait for that one result.
+ */
+class LookupContext {
+  private static final ImmutableSet<ListChangesOption> CURRENT_COMMIT =
+      Sets.immutableEnumSet(ListChangesOption.CURRENT_REVISION, ListChangesOption.CURRENT_COMMIT);
+
+  /** A read that may fail the way REST API calls do. */
+  private interface Read<T> {
+    T read() throws RestApiException;
+  }
+
+  private final GerritApi gApi;
+  private final DownstreamIndex index;
+  private final ParentOperator parentOperator;
+  private final ChangeLookup changeLookup;
+  // The first page of each topic.
+  private final ConcurrentMap<String, CompletableFuture<TopicChanges>> topics =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<
+          Integer, ConcurrentMap<Set<ListChangesOption>, CompletableFuture<ChangeInfo>>>
+      changes = new ConcurrentHashMap<>();
+  private final AtomicInteger savedCalls = new AtomicInteger();
+
+  LookupContext(
+      GerritApi gApi,
+      DownstreamIndex index,
+      ParentOperator parentOperator,
+      ChangeLookup changeLookup) {
+    this.gApi = gApi;
+    this.index = index;
+    this.parentOperator = parentOperator;
+    this.changeLookup = changeLookup;
+  }
+
+  /**
+   * Returns the open changes on the given branch and in the given topic that merge the given
+   * revision, from the topic if it fits on one page, otherwise from the downstream index if each
+   * change it knows still is one, otherwise by querying for exactly those changes.
+   *
+   * <p>The first page of the topic is read once per event, and answers the lookups on every branch
+   * if it holds the whole topic.
+   *
+   * @param topic The topic.
+   * @param upstreamRevision Revision that must be the second parent of the current revision.
+   * @param branch Branch of the changes.
+   * @return The numbers of the matching changes.
+   * @throws InvalidQueryParameterException
+   * @throws RestApiException
+   */
+  List<Integer> getMerges(String topic, String upstreamRevision, String branch)
+      throws InvalidQueryParameterException, RestApiException {
+    if (topic != null) {
+      List<Integer> known = getKnownMerges(topic, upstreamRevision, branch);
+      if (known != null) {
+        return known;
+      }
+    }
+    QueryBuilder queryBuilder = new QueryBuilder();
+    queryBuilder.addParameter("topic", topic);
+    queryBuilder.addParameter("branch", branch);
+    queryBuilder.addParameter("status", "open");
+    queryBuilder.addParameter(parentOperator.getName(), upstreamRevision);
+    List<Integer> merges = new ArrayList<>();
+    for (ChangeInfo change : gApi.changes().query(queryBuilder.get()).get()) {
+      merges.add(change._number);
+    }
+    return merges;
+  }
+
+  /**
+   * Returns the merges that can be found without a query.
+   *
+   * @return The numbers of the matching changes, or null if a query is needed.
+   * @throws RestApiException
+   */
+  private List<Integer> getKnownMerges(String topic, String upstreamRevision, String branch)
+      throws RestApiException {
+    // One query for the topic, instead of one for each branch looked up in it.
+    TopicChanges changes = topic.isEmpty() ? null : getFirstPage(topic);
+    if (changes != null && changes.isComplete()) {
+      List<Integer> merges = new ArrayList<>();
+      for (ChangeSummary change : changes.getMerges(upstreamRevision, branch)) {
+        merges.add(change.getChangeNumber());
+      }
+      return merges;
+    }
+    List<Integer> merges = index.getMerges(upstreamRevision, branch, topic);
+    if (merges.isEmpty()) {
+      return null;
+    }
+    // The index may be stale, and may miss other merges next to a stale one.
+    for (int changeNumber : merges) {
+      if (!isMerge(changeNumber, topic, upstreamRevision, branch)) {
+        return null;
+      }
+    }
+    return merges;
+  }
+
+  private boolean isMerge(int changeNumber, String topic, String upstreamRevision, String branch)
+      throws RestApiException {
+    ChangeInfo change;
+    try {
+      change = getChange(changeNumber, CURRENT_COMMIT);
+    } catch (ResourceNotFoundException e) {
+      index.remove(changeNumber);
+      return false;
+    }
+    return index.verify(change, upstreamRevision, branch, topic);
+  }
+
+  /**
+   * Returns the open change in the given topic whose current revision is the given one.
+   *
+   * <p>The topic is read a page at a time, only until the change is found. If it is not found in a
+   * topic too large for one page, it is looked for directly, since the pages may have skipped it.
+   *
+   * @param topic The topic.
+   * @param revision The current revision.
+   * @return The change, or null if no open change in the topic is at that revision.
+   * @throws InvalidQueryParameterException
+   * @throws StorageException
+   */
+  ChangeSummary getByCurrentRevision(String topic, String revision)
+      throws InvalidQueryParameterException {
+    if (topic == null) {
+      throw new InvalidQueryParameterException("Cannot look up changes in a null topic.");
+    }
+    TopicChanges changes = getFirstPage(topic);
+    ChangeSummary change = changes.getByCurrentRevision(revision);
+    if (change != null || changes.isComplete()) {
+      return change;
+    }
+    // Only the page being searched is kept, and the first one is shared.
+    changes = new TopicChanges(changes);
+    while (change == null && changes.hasMore()) {
+      readPage(topic, changes);
+      change = changes.getByCurrentRevision(revision);
+    }
+    if (change == null) {
+      for (ChangeSummary atRevision : changeLookup.getOpenChangesAtRevision(topic, revision)) {
+        index.update(atRevision);
+        if (change == null) {
+          change = atRevision;
+        }
+      }
+    }
+    return change;
+  }
+
+  private TopicChanges getFirstPage(String topic) {
+    try {
+      return memoize(
+          topics,
+          topic,
+          () -> {
+            TopicChanges changes = new TopicChanges();
+            readPage(topic, changes);
+            return changes;
+          });
+    } catch (RestApiException e) {
+      // Reading a topic does not go through the REST API.
+      throw new StorageException(e);
+    }
+  }
+
+  // Reads the next page of the topic, and records its changes in the downstream index.
+  private void readPage(String topic, TopicChanges changes) {
+    ChangeLookup.Page page = changeLookup.getOpenChangesInTopic(topic, changes.getRead());
+    changes.add(page.changes, page.more);
+    if (changes.isComplete()) {
+      index.refreshTopic(topic, page.changes);
+    } else {
+      // Pages may skip changes, so nothing can be dropped from the index for missing from them.
+      for (ChangeSummary pageChange : page.changes) {
+        index.update(pageChange);
+      }
+    }
+  }
+
+  /**
+   * Returns the given change, with at least the given options.
+   *
+   * @param changeNumber Number of the change.
+   * @param options Options to fetch the change with.
+   * @return The change. It is shared, so it must not be modified.
+   * @throws RestApiException
+   */
+  ChangeInfo getChange(int changeNumber, Set<ListChangesOption> options)
+      throws RestApiException {
+    ConcurrentMap<Set<ListChangesOption>, CompletableFuture<ChangeInfo>> byOptions =
+        changes.computeIfAbsent(changeNumber, n -> new ConcurrentHashMap<>());
+    for (Map.Entry<Set<ListChangesOption>, CompletableFuture<ChangeInfo>> entry :
+        byOptions.entrySet()) {
+      if (entry.getKey().containsAll(options)) {
+        savedCalls.incrementAndGet();
+        return await(entry.getValue());
+      }
+    }
+    ImmutableSet<ListChangesOption> key = Sets.immutableEnumSet(options);
+    return memoize(
+        byOptions,
+        key,
+        () ->
+            gApi.changes()
+                .id(changeNumber)
+                .get(
+                    key.isEmpty() ? EnumSet.noneOf(ListChangesOption.class) : EnumSet.copyOf(key)));
+  }
+
+  /**
+   * Returns the value read for the given key, reading it if no other caller has yet.
+   *
+   * <p>A failed read is forgotten, so that a later call tries again.
+   */
+  private <K, V> V memoize(ConcurrentMap<K, CompletableFuture<V>> memo, K key, Read<V> read)
+      throws RestApiException {
+    CompletableFuture<V> future = new CompletableFuture<>();
+    CompletableFuture<V> existing = memo.putIfAbsent(key, future);
+    if (existing != null) {
+      savedCalls.incrementAndGet();
+      return await(existing);
+    }
+    try {
+      V value = read.read();
+      future.complete(value);
+      return value;
+    } catch (RestApiException | RuntimeException e) {
+      memo.remove(key, future);
+      future.completeExceptionally(e);
+      throw e;
+    }
+  }
+
+  private static <V> V await(CompletableFuture<V> future) throws RestApiException {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), RestApiException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new StorageException(e.getCause());
+    }
+  }
+
+  /**
+   * Records that the topic of the given change was set.
+   *
+   * @param changeNumber Number of the change.
+   * @param topic The new topic.
+   */
+  void setTopic(int changeNumber, String topic) {
+    Map<Set<ListChangesOption>, CompletableFuture<ChangeInfo>> byOptions =
+        changes.get(changeNumber);
+    if (byOptions != null) {
+      for (CompletableFuture<ChangeInfo> change : byOptions.values()) {
+        // A fetch still in progress is updated as soon as it completes.
+        change.thenAccept(c -> c.topic = topic);
+      }
+    }
+  }
+
+  /**
+   * Forgets everything fetched about the given change, because it is about to change.
+   *
+   * @param changeNumber Number of the change.
+   */
+  void invalidate(int changeNumber) {
+    changes.remove(changeNumber);
+  }
+
+  /**
+   * Returns how many REST API calls were answered from earlier results.
+   *
+   * @return The number of calls saved.
+   */
+  int getSavedCalls() {
+    return savedCalls.get();
+  }
+}
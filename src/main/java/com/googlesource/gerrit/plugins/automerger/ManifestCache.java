@@ -0,0 +1,350 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.automerger;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.gerrit.extensions.api.GerritApi;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.gerrit.extensions.restapi.BinaryResult;
+import com.google.gerrit.extensions.restapi.ResourceNotFoundException;
+import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.reviewdb.client.RefNames;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.stream.XMLStreamException;
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of the projects in the repo manifest of each branch.
+ *
+ * <p>Resolved project sets are keyed by the tree holding the manifest, so an entry never goes
+ * stale. The tree at the tip of each branch is remembered until a ref update on the manifest
+ * project moves that branch. The manifest and the files it includes are parsed into fragments
+ * that are cached by blob id, so a change to one included file only re-parses that file.
+ *
+ * <p>Manifests are read directly from the repository; the REST file API is only used when a blob
+ * cannot be read that way.
+ */
+@Singleton
+public class ManifestCache implements GitReferenceUpdatedListener {
+  static final String CACHE_NAME = "manifest_projects";
+  static final String FRAGMENT_CACHE_NAME = "manifest_fragments";
+  private static final Logger log = LoggerFactory.getLogger(ManifestCache.class);
+
+  private final GerritApi gApi;
+  private final GitRepositoryManager repoManager;
+  private final ProjectDictionary dictionary;
+  private final Cache<Key, ProjectSet> projectsCache;
+  private final Cache<ObjectId, ManifestFragment> fragmentCache;
+  private final Timer0 loadLatency;
+  private final Set<String> manifestProjects = ConcurrentHashMap.newKeySet();
+  private final ConcurrentMap<BranchKey, Optional<Key>> tips = new ConcurrentHashMap<>();
+  private final AtomicLong generation = new AtomicLong();
+
+  /**
+   * Identifies a resolved manifest. The manifest may include other files, so it is identified by
+   * the tree holding all of them: the same tree on the same branch always has the same scope.
+   */
+  static class Key {
+    final String manifestProject;
+    final String branch;
+    final String manifestFile;
+    final ObjectId treeId;
+
+    Key(String manifestProject, String branch, String manifestFile, ObjectId treeId) {
+      this.manifestProject = manifestProject;
+      this.branch = branch;
+      this.manifestFile = manifestFile;
+      this.treeId = treeId.copy();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return manifestProject.equals(other.manifestProject)
+          && branch.equals(other.branch)
+          && manifestFile.equals(other.manifestFile)
+          && treeId.equals(other.treeId);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(manifestProject, branch, manifestFile, treeId);
+    }
+
+    @Override
+    public String toString() {
+      return manifestProject + ":" + branch + ":" + manifestFile + "@" + treeId.name();
+    }
+  }
+
+  private static class BranchKey {
+    final String manifestProject;
+    final String branch;
+    final String manifestFile;
+
+    BranchKey(String manifestProject, String branch, String manifestFile) {
+      this.manifestProject = manifestProject;
+      this.branch = branch;
+      this.manifestFile = manifestFile;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof BranchKey)) {
+        return false;
+      }
+      BranchKey other = (BranchKey) o;
+      return manifestProject.equals(other.manifestProject)
+          && branch.equals(other.branch)
+          && manifestFile.equals(other.manifestFile);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(manifestProject, branch, manifestFile);
+    }
+  }
+
+  @Inject
+  ManifestCache(
+      GerritApi gApi,
+      GitRepositoryManager repoManager,
+      ProjectDictionary dictionary,
+      @Named(CACHE_NAME) Cache<Key, ProjectSet> projectsCache,
+      @Named(FRAGMENT_CACHE_NAME) Cache<ObjectId, ManifestFragment> fragmentCache,
+      MetricMaker metricMaker) {
+    this.gApi = gApi;
+    this.repoManager = repoManager;
+    this.dictionary = dictionary;
+    this.projectsCache = projectsCache;
+    this.fragmentCache = fragmentCache;
+    this.loadLatency =
+        metricMaker.newTimer(
+            "manifest/load_latency",
+            new Description("Latency of loading and parsing a manifest on a cache miss")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS));
+  }
+
+  /**
+   * Returns the projects in the manifest of the given branch whose revision is that branch.
+   *
+   * @param manifestProject Project holding the manifest.
+   * @param manifestFile Path of the manifest within the project.
+   * @param branch Branch of the manifest to read.
+   * @return The projects in the manifest, or an empty set if there is no manifest.
+   * @throws RestApiException
+   * @throws IOException
+   */
+  public ProjectSet getProjects(
+      String manifestProject, String manifestFile, String branch)
+      throws RestApiException, IOException {
+    BranchKey branchKey = new BranchKey(manifestProject, branch, manifestFile);
+    Optional<Key> key = tips.get(branchKey);
+    if (key == null) {
+      manifestProjects.add(manifestProject);
+      long expectedGeneration = generation.get();
+      key = resolve(branchKey);
+      tips.put(branchKey, key);
+      if (generation.get() != expectedGeneration) {
+        // A branch moved while we were resolving it; don't trust what we saw.
+        tips.remove(branchKey, key);
+      }
+    }
+    if (!key.isPresent()) {
+      log.debug("Manifest for {} not found", branch);
+      return ProjectSet.EMPTY;
+    }
+    Key manifestKey = key.get();
+    try {
+      return projectsCache.get(manifestKey, () -> load(manifestKey));
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), RestApiException.class);
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      throw new IOException("Failed to load manifest " + manifestKey, e.getCause());
+    }
+  }
+
+  /**
+   * Returns a number that changes whenever a manifest branch that was read before moves.
+   *
+   * @return The current generation of the cached manifests.
+   */
+  public long getGeneration() {
+    return generation.get();
+  }
+
+  @Override
+  public void onGitReferenceUpdated(GitReferenceUpdatedListener.Event event) {
+    String project = event.getProjectName();
+    String refName = event.getRefName();
+    if (!manifestProjects.contains(project) || !refName.startsWith(RefNames.REFS_HEADS)) {
+      return;
+    }
+    String branch = refName.substring(RefNames.REFS_HEADS.length());
+    log.debug("Manifest branch {} of {} updated, invalidating", branch, project);
+    generation.incrementAndGet();
+    tips.keySet().removeIf(k -> k.manifestProject.equals(project) && k.branch.equals(branch));
+    projectsCache
+        .asMap()
+        .keySet()
+        .removeIf(k -> k.manifestProject.equals(project) && k.branch.equals(branch));
+  }
+
+  // Finds the tree at the tip of the branch, if the branch exists and has the manifest.
+  private Optional<Key> resolve(BranchKey branchKey) throws IOException {
+    try (Repository repo =
+            repoManager.openRepository(Project.nameKey(branchKey.manifestProject));
+        RevWalk rw = new RevWalk(repo)) {
+      Ref ref = repo.exactRef(RefNames.REFS_HEADS + branchKey.branch);
+      if (ref == null) {
+        return Optional.empty();
+      }
+      RevCommit commit = rw.parseCommit(ref.getObjectId());
+      try (TreeWalk tw =
+          TreeWalk.forPath(rw.getObjectReader(), branchKey.manifestFile, commit.getTree())) {
+        if (tw == null) {
+          return Optional.empty();
+        }
+        return Optional.of(
+            new Key(
+                branchKey.manifestProject,
+                branchKey.branch,
+                branchKey.manifestFile,
+                commit.getTree()));
+      }
+    } catch (RepositoryNotFoundException e) {
+      log.debug("Manifest project {} not found", branchKey.manifestProject);
+      return Optional.empty();
+    }
+  }
+
+  private ProjectSet load(Key key) throws RestApiException, IOException {
+    try (Timer0.Context ctx = loadLatency.start();
+        Repository repo = repoManager.openRepository(Project.nameKey(key.manifestProject));
+        ObjectReader reader = repo.newObjectReader()) {
+      Optional<ManifestFragment> manifest = loadFragment(reader, key, key.manifestFile);
+      if (!manifest.isPresent()) {
+        log.debug("Manifest for {} not found", key.branch);
+        return ProjectSet.EMPTY;
+      }
+      ProjectSet projects =
+          ProjectSet.of(
+              dictionary,
+              ManifestReader.resolveProjects(
+                  key.branch,
+                  key.manifestFile,
+                  manifest.get(),
+                  name -> loadFragment(reader, key, name)));
+      log.debug("Loaded manifest {} with {} projects", key, projects.size());
+      return projects;
+    }
+  }
+
+  // Looks up a manifest file in the tree of the key and parses it, unless a file with the same
+  // blob was parsed before.
+  private Optional<ManifestFragment> loadFragment(ObjectReader reader, Key key, String path)
+      throws IOException {
+    ObjectId blobId;
+    try (TreeWalk tw = TreeWalk.forPath(reader, path, key.treeId)) {
+      if (tw == null) {
+        return Optional.empty();
+      }
+      blobId = tw.getObjectId(0);
+    }
+    try {
+      return Optional.of(
+          fragmentCache.get(blobId, () -> parseFragment(reader, key, path, blobId)));
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof ResourceNotFoundException) {
+        return Optional.empty();
+      }
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      throw new IOException("Failed to load manifest file " + path + " of " + key, e.getCause());
+    }
+  }
+
+  // Streams the blob straight from the repository, using the same reader for every file of the
+  // manifest. Falls back to the file API if the blob cannot be read.
+  private ManifestFragment parseFragment(
+      ObjectReader reader, Key key, String path, ObjectId blobId)
+      throws RestApiException, IOException {
+    try (InputStream in = reader.open(blobId, Constants.OBJ_BLOB).openStream()) {
+      return ManifestFragment.parse(in);
+    } catch (XMLStreamException e) {
+      log.error("Exception on manifest file {} of {}", path, key, e);
+      return ManifestFragment.EMPTY;
+    } catch (IOException e) {
+      log.warn(
+          "Failed to read manifest file {} of {} from the repository, using the file API",
+          path,
+          key,
+          e);
+      return parseFragmentFromApi(key, path, blobId);
+    }
+  }
+
+  private ManifestFragment parseFragmentFromApi(Key key, String path, ObjectId blobId)
+      throws RestApiException, IOException {
+    try (BinaryResult manifestConfig =
+        gApi.projects().name(key.manifestProject).branch(key.branch).file(path)) {
+      ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+      manifestConfig.writeTo(manifestBytes);
+      byte[] contents = manifestBytes.toByteArray();
+      // The file API reads the current tip, which may have moved on since the tree was resolved.
+      if (!blobId.equals(new ObjectInserter.Formatter().idFor(Constants.OBJ_BLOB, contents))) {
+        throw new IOException("Manifest file " + path + " of " + key + " changed while loading");
+      }
+      return ManifestFragment.parse(new ByteArrayInputStream(contents));
+    } catch (XMLStreamException e) {
+      log.error("Exception on manifest file {} of {}", path, key, e);
+      return ManifestFragment.EMPTY;
+    }
+  }
+}
@@ -0,0 +1,122 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.automerger;
+
+import com.google.common.collect.ImmutableList;
+import java.io.InputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * The parts of a single manifest file that matter for scope, in document order.
+ *
+ * <p>A fragment does not depend on the branch it is read for, so it can be shared by every
+ * manifest that includes the same blob.
+ */
+class ManifestFragment {
+  static final ManifestFragment EMPTY = new ManifestFragment(ImmutableList.of());
+  private static final XMLInputFactory XML_INPUT_FACTORY = newInputFactory();
+
+  enum Type {
+    DEFAULT,
+    PROJECT,
+    INCLUDE,
+    REMOVE_PROJECT,
+    EXTEND_PROJECT
+  }
+
+  /** A manifest element, reduced to its name and revision attributes. */
+  static class Element {
+    final Type type;
+    final String name;
+    final String revision;
+
+    Element(Type type, String name, String revision) {
+      this.type = type;
+      this.name = name;
+      this.revision = revision;
+    }
+  }
+
+  private final ImmutableList<Element> elements;
+
+  private ManifestFragment(ImmutableList<Element> elements) {
+    this.elements = elements;
+  }
+
+  private static XMLInputFactory newInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    return factory;
+  }
+
+  /**
+   * Parses a manifest file in a single streaming pass.
+   *
+   * <p>Missing attributes are read as empty strings, as with {@code Element.getAttribute}.
+   *
+   * @param in Contents of the manifest file. The stream is not closed.
+   * @return The parsed fragment.
+   * @throws XMLStreamException
+   */
+  static ManifestFragment parse(InputStream in) throws XMLStreamException {
+    ImmutableList.Builder<Element> elements = ImmutableList.builder();
+    XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+    try {
+      while (reader.hasNext()) {
+        if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+          continue;
+        }
+        Type type = typeOf(reader.getLocalName());
+        if (type != null) {
+          elements.add(
+              new Element(type, attribute(reader, "name"), attribute(reader, "revision")));
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return new ManifestFragment(elements.build());
+  }
+
+  private static Type typeOf(String element) {
+    switch (element) {
+      case "default":
+        return Type.DEFAULT;
+      case "project":
+        return Type.PROJECT;
+      case "include":
+        return Type.INCLUDE;
+      case "remove-project":
+        return Type.REMOVE_PROJECT;
+      case "extend-project":
+        return Type.EXTEND_PROJECT;
+      default:
+        return null;
+    }
+  }
+
+  private static String attribute(XMLStreamReader reader, String name) {
+    String value = reader.getAttributeValue(null, name);
+    return value != null ? value : "";
+  }
+
+  ImmutableList<Element> getElements() {
+    return elements;
+  }
+}
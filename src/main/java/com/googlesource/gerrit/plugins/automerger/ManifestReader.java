@@ -14,31 +14,47 @@
 
 package com.googlesource.gerrit.plugins.automerger;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 /** Class to read a repo manifest. */
 public class ManifestReader {
   private static final Logger log = LoggerFactory.getLogger(ManifestReader.class);
 
-  private final String manifestString;
+  private final InputStream manifestStream;
   private final String branch;
 
   public ManifestReader(String branch, String manifestString) {
-    this.manifestString = manifestString;
+    this(branch, new ByteArrayInputStream(manifestString.getBytes(UTF_8)));
+  }
+
+  /**
+   * Creates a reader that streams the manifest.
+   *
+   * <p>The stream is consumed by {@link #getProjects()}, but not closed. Includes are not followed;
+   * use {@link #resolveProjects} for that.
+   *
+   * @param branch Branch the manifest belongs to.
+   * @param manifestStream Contents of the manifest.
+   */
+  public ManifestReader(String branch, InputStream manifestStream) {
+    this.manifestStream = manifestStream;
     this.branch = branch;
   }
 
@@ -48,39 +64,133 @@ public class ManifestReader {
    * @return The set of projects in the manifest.
    */
   public Set<String> getProjects() {
+    try {
+      return resolveProjects(branch, null, ManifestFragment.parse(manifestStream), null);
+    } catch (XMLStreamException | IOException e) {
+      log.error("Exception on manifest for branch {}", branch, e);
+      return new HashSet<>();
+    }
+  }
+
+  /**
+   * Resolves the projects of a parsed manifest, following its {@code <include>} elements and
+   * applying {@code <remove-project>} and {@code <extend-project>} in document order.
+   *
+   * @param branch Branch the manifest belongs to.
+   * @param manifestName Name of the top level manifest file, so that an include of it is seen as
+   *     a cycle, or null if it has no name.
+   * @param manifest The top level manifest file.
+   * @param includeLoader Loader for included files, or null to ignore includes.
+   * @return The set of projects in the manifest whose revision is the branch.
+   * @throws IOException
+   */
+  static Set<String> resolveProjects(
+      String branch,
+      String manifestName,
+      ManifestFragment manifest,
+      IncludeLoader includeLoader)
+      throws IOException {
+    Resolution resolution = new Resolution(includeLoader);
+    Deque<String> includeStack = new ArrayDeque<>();
+    if (manifestName != null) {
+      includeStack.push(manifestName);
+    }
+    resolution.apply(manifest, includeStack);
+
     Set<String> projectSet = new HashSet<>();
+    for (List<ProjectEntry> projects : resolution.projects.values()) {
+      for (ProjectEntry project : projects) {
+        String revision = project.revision;
+        if ("".equals(revision)) {
+          revision = resolution.defaultRevision != null ? resolution.defaultRevision : "";
+        }
+        if (revision.equals(branch)) {
+          projectSet.add(project.name);
+        }
+      }
+    }
+    return projectSet;
+  }
 
-    try {
-      DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-      DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
-      Document document = documentBuilder.parse(new InputSource(new StringReader(manifestString)));
-
-      Element defaultElement = (Element) document.getElementsByTagName("default").item(0);
-      String defaultRevision = defaultElement.getAttribute("revision");
-
-      NodeList projectNodes = document.getElementsByTagName("project");
-      for (int i = 0; i < projectNodes.getLength(); i++) {
-        Node projectNode = projectNodes.item(i);
-        if (projectNode.getNodeType() == Node.ELEMENT_NODE) {
-          Element projectElement = (Element) projectNode;
-          String name = projectElement.getAttribute("name");
-
-          String revision = projectElement.getAttribute("revision");
-          if ("".equals(revision)) {
-            revision = defaultRevision;
-          }
-
-          // Only add to list of projects in scope if revision is same as
-          // manifest branch
-          if (revision.equals(branch)) {
-            projectSet.add(name);
-          }
+  /** Loads the files named by {@code <include>} elements. */
+  interface IncludeLoader {
+    /**
+     * Loads an included manifest file.
+     *
+     * @param name Name of the file, relative to the root of the manifest project.
+     * @return The parsed file, or empty if it does not exist.
+     * @throws IOException
+     */
+    Optional<ManifestFragment> load(String name) throws IOException;
+  }
+
+  private static class ProjectEntry {
+    final String name;
+    String revision;
+
+    ProjectEntry(String name, String revision) {
+      this.name = name;
+      this.revision = revision;
+    }
+  }
+
+  private static class Resolution {
+    final IncludeLoader includeLoader;
+    // Projects by name; a name may be checked out at several paths.
+    final Map<String, List<ProjectEntry>> projects = new LinkedHashMap<>();
+    String defaultRevision;
+
+    Resolution(IncludeLoader includeLoader) {
+      this.includeLoader = includeLoader;
+    }
+
+    void apply(ManifestFragment fragment, Deque<String> includeStack) throws IOException {
+      for (ManifestFragment.Element element : fragment.getElements()) {
+        switch (element.type) {
+          case DEFAULT:
+            if (defaultRevision == null) {
+              defaultRevision = element.revision;
+            }
+            break;
+          case PROJECT:
+            projects
+                .computeIfAbsent(element.name, n -> new ArrayList<>())
+                .add(new ProjectEntry(element.name, element.revision));
+            break;
+          case REMOVE_PROJECT:
+            projects.remove(element.name);
+            break;
+          case EXTEND_PROJECT:
+            if (!"".equals(element.revision)) {
+              for (ProjectEntry project :
+                  projects.getOrDefault(element.name, Collections.emptyList())) {
+                project.revision = element.revision;
+              }
+            }
+            break;
+          case INCLUDE:
+            include(element.name, includeStack);
+            break;
         }
       }
+    }
 
-    } catch (SAXException | ParserConfigurationException | IOException e) {
-      log.error("Exception on manifest for branch {}", branch, e);
+    private void include(String name, Deque<String> includeStack) throws IOException {
+      if (includeLoader == null) {
+        return;
+      }
+      if (includeStack.contains(name)) {
+        log.error("Manifest include cycle through {}: {}", name, includeStack);
+        return;
+      }
+      Optional<ManifestFragment> included = includeLoader.load(name);
+      if (!included.isPresent()) {
+        log.warn("Included manifest {} not found", name);
+        return;
+      }
+      includeStack.push(name);
+      apply(included.get(), includeStack);
+      includeStack.pop();
     }
-    return projectSet;
   }
 }
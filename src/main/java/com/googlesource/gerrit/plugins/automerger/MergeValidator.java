@@ -20,8 +20,7 @@ import com.google.gerrit.common.data.ParameterizedString;
 import com.google.gerrit.extensions.api.GerritApi;
 import com.google.gerrit.extensions.client.ListChangesOption;
 import com.google.gerrit.extensions.common.ChangeInfo;
-import com.google.gerrit.extensions.common.CommitInfo;
-import com.google.gerrit.extensions.common.RevisionInfo;
+import com.google.gerrit.extensions.restapi.ResourceNotFoundException;
 import com.google.gerrit.extensions.restapi.RestApiException;
 import com.google.gerrit.reviewdb.client.BranchNameKey;
 import com.google.gerrit.reviewdb.client.PatchSet.Id;
@@ -35,7 +34,6 @@ import java.io.IOException;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import org.eclipse.jgit.errors.ConfigInvalidException;
@@ -52,11 +50,16 @@ public class MergeValidator implements MergeValidationListener {
 
   protected GerritApi gApi;
   protected ConfigLoader config;
+  private final DownstreamIndex index;
+  private final ParentOperator parentOperator;
 
   @Inject
-  public MergeValidator(GerritApi gApi, ConfigLoader config) {
+  public MergeValidator(
+      GerritApi gApi, ConfigLoader config, DownstreamIndex index, ParentOperator parentOperator) {
     this.gApi = gApi;
     this.config = config;
+    this.index = index;
+    this.parentOperator = parentOperator;
   }
 
   @Override
@@ -106,37 +109,62 @@ public class MergeValidator implements MergeValidationListener {
 
     Set<String> downstreamBranches =
         config.getDownstreamBranches(upstreamChange.branch, upstreamChange.project);
+    if (downstreamBranches.isEmpty()) {
+      return missingDownstreamBranches;
+    }
+    if (upstreamChange.topic == null || upstreamChange.topic.equals("")) {
+      // If topic is null or empty, we immediately know that downstream is missing.
+      missingDownstreamBranches.addAll(downstreamBranches);
+      return missingDownstreamBranches;
+    }
+
+    // Only the branches the downstream index knows a merge for that still is one can be skipped.
+    Set<String> unindexedBranches = new HashSet<>();
     for (String downstreamBranch : downstreamBranches) {
-      boolean dsExists = false;
-      QueryBuilder queryBuilder = new QueryBuilder();
-      if (upstreamChange.topic == null || upstreamChange.topic.equals("")) {
-        // If topic is null or empty, we immediately know that downstream is missing.
-        missingDownstreamBranches.add(downstreamBranch);
-        continue;
+      if (!hasIndexedMerge(upstreamChange, downstreamBranch)) {
+        unindexedBranches.add(downstreamBranch);
       }
-      queryBuilder.addParameter("topic", upstreamChange.topic);
-      queryBuilder.addParameter("branch", downstreamBranch);
-      queryBuilder.addParameter("status", "open");
-      List<ChangeInfo> changes =
-          gApi.changes()
-              .query(queryBuilder.get())
-              .withOptions(ListChangesOption.ALL_REVISIONS, ListChangesOption.CURRENT_COMMIT)
-              .get();
-      for (ChangeInfo change : changes) {
-        RevisionInfo revision = change.revisions.get(change.currentRevision);
-        List<CommitInfo> parents = revision.commit.parents;
-        if (parents.size() > 1) {
-          String secondParent = parents.get(1).commit;
-          if (secondParent.equals(upstreamChange.currentRevision)) {
-            dsExists = true;
-            break;
-          }
-        }
+    }
+    if (unindexedBranches.isEmpty()) {
+      return missingDownstreamBranches;
+    }
+
+    // One query for the merges on the remaining branches.
+    QueryBuilder queryBuilder = new QueryBuilder();
+    queryBuilder.addParameter("topic", upstreamChange.topic);
+    queryBuilder.addParameterGroup("branch", unindexedBranches);
+    queryBuilder.addParameter("status", "open");
+    queryBuilder.addParameter(parentOperator.getName(), upstreamChange.currentRevision);
+    missingDownstreamBranches.addAll(unindexedBranches);
+    for (ChangeInfo change : gApi.changes().query(queryBuilder.get()).get()) {
+      missingDownstreamBranches.remove(change.branch);
+    }
+    return missingDownstreamBranches;
+  }
+
+  private boolean hasIndexedMerge(ChangeInfo upstreamChange, String downstreamBranch)
+      throws RestApiException {
+    for (int changeNumber :
+        index.getMerges(upstreamChange.currentRevision, downstreamBranch, upstreamChange.topic)) {
+      // The index may be stale, so check the change as it is now.
+      ChangeInfo change;
+      try {
+        change =
+            gApi.changes()
+                .id(changeNumber)
+                .get(
+                    EnumSet.of(
+                        ListChangesOption.CURRENT_REVISION, ListChangesOption.CURRENT_COMMIT));
+      } catch (ResourceNotFoundException e) {
+        index.remove(changeNumber);
+        continue;
       }
-      if (!dsExists) {
-        missingDownstreamBranches.add(downstreamBranch);
+      // One merge that still is one is enough for the branch not to be missing.
+      if (index.verify(
+          change, upstreamChange.currentRevision, downstreamBranch, upstreamChange.topic)) {
+        return true;
       }
     }
-    return missingDownstreamBranches;
+    return false;
   }
 }
@@ -0,0 +1,108 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.automerger;
+
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.index.query.PostFilterPredicate;
+import com.google.gerrit.index.query.Predicate;
+import com.google.gerrit.index.query.QueryParseException;
+import com.google.gerrit.reviewdb.client.PatchSet;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.server.query.change.ChangeQueryBuilder;
+import com.google.gerrit.server.query.change.ChangeQueryBuilder.ChangeOperatorFactory;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Change query operator matching changes whose current revision has the given commit as its second
+ * parent, which is how a downstream merge refers to the upstream revision it merges.
+ *
+ * <p>Gerrit names plugin operators after the plugin, so the operator is {@code
+ * parent_automerger:<sha>}. The change index has no parents field, so it is a post filter and
+ * should be combined with operators the index can answer, such as {@code topic:} and {@code
+ * status:}.
+ */
+@Singleton
+class ParentOperator implements ChangeOperatorFactory {
+  static final String NAME = "parent";
+
+  private static final Logger log = LoggerFactory.getLogger(ParentOperator.class);
+
+  private final String operatorName;
+  private final GitRepositoryManager repoManager;
+
+  @Inject
+  ParentOperator(@PluginName String pluginName, GitRepositoryManager repoManager) {
+    this.operatorName = NAME + "_" + pluginName;
+    this.repoManager = repoManager;
+  }
+
+  /**
+   * Returns the name queries must use for this operator.
+   *
+   * @return The operator name, qualified with the plugin name.
+   */
+  String getName() {
+    return operatorName;
+  }
+
+  @Override
+  public Predicate<ChangeData> create(ChangeQueryBuilder builder, String value)
+      throws QueryParseException {
+    if (!ObjectId.isId(value)) {
+      throw new QueryParseException("Invalid commit SHA-1 for " + operatorName + ": " + value);
+    }
+    return new ParentPredicate(ObjectId.fromString(value));
+  }
+
+  private class ParentPredicate extends PostFilterPredicate<ChangeData> {
+    private final ObjectId parent;
+
+    ParentPredicate(ObjectId parent) {
+      super(operatorName, parent.name());
+      this.parent = parent;
+    }
+
+    @Override
+    public boolean match(ChangeData cd) {
+      // Always read the commit: the downstream index may be stale, and the answer is user visible.
+      PatchSet ps = cd.currentPatchSet();
+      if (ps == null) {
+        return false;
+      }
+      try (Repository repo = repoManager.openRepository(cd.project());
+          RevWalk rw = new RevWalk(repo)) {
+        RevCommit commit = rw.parseCommit(ps.commitId());
+        return commit.getParentCount() > 1 && commit.getParent(1).equals(parent);
+      } catch (IOException e) {
+        log.warn("Failed to read current revision of change {}", cd.getId(), e);
+        return false;
+      }
+    }
+
+    @Override
+    public int getCost() {
+      return 2;
+    }
+  }
+}
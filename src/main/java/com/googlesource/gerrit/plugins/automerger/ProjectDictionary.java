@@ -0,0 +1,94 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.automerger;
+
+import com.google.inject.Singleton;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Assigns dense int ids to project names so that sets of projects can be stored as bitmaps.
+ *
+ * <p>Ids are never reused or removed, so a {@link ProjectSet} stays valid for as long as the
+ * plugin is loaded. The dictionary only grows with the number of distinct project names seen in
+ * manifests and config, which is bounded in practice.
+ */
+@Singleton
+class ProjectDictionary {
+  private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+  // Written under the lock; an id is only handed out after its name is stored.
+  private volatile String[] names = new String[1024];
+  private int size;
+
+  /**
+   * Returns the id of the given project, assigning a new one if needed.
+   *
+   * @param project Name of the project.
+   * @return The id of the project.
+   */
+  int intern(String project) {
+    Integer id = ids.get(project);
+    if (id != null) {
+      return id;
+    }
+    synchronized (this) {
+      id = ids.get(project);
+      if (id != null) {
+        return id;
+      }
+      if (size == names.length) {
+        names = Arrays.copyOf(names, size * 2);
+      }
+      String[] current = names;
+      current[size] = project;
+      names = current;
+      ids.put(project, size);
+      return size++;
+    }
+  }
+
+  /**
+   * Returns the id of the given project without assigning one.
+   *
+   * @param project Name of the project.
+   * @return The id of the project, or -1 if it was never interned.
+   */
+  int getId(String project) {
+    Integer id = ids.get(project);
+    return id != null ? id : -1;
+  }
+
+  /**
+   * Returns the name of the project with the given id.
+   *
+   * @param id Id returned by {@link #intern(String)}.
+   * @return The name of the project.
+   */
+  String getName(int id) {
+    return names[id];
+  }
+
+  /**
+   * Estimates the heap used by the dictionary, excluding the name strings themselves, which are
+   * shared with the rest of the server.
+   *
+   * @return The estimated size in bytes.
+   */
+  long estimateHeapBytes() {
+    // A hash map node, a boxed id and a table slot per entry, plus the id to name array.
+    return ids.size() * 64L + names.length * 8L;
+  }
+}
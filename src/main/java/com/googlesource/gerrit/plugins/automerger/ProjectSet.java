@@ -0,0 +1,165 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.automerger;
+
+import com.google.common.collect.ImmutableSet;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Immutable set of projects, stored as a bitmap over the ids of a {@link ProjectDictionary}.
+ *
+ * <p>Ids are dense, so a manifest of a few thousand projects takes a few hundred bytes and set
+ * operations between scopes work a word at a time.
+ */
+class ProjectSet {
+  static final ProjectSet EMPTY = new ProjectSet(null, new long[0]);
+
+  // Null only for EMPTY, which never needs to look a name up.
+  private final ProjectDictionary dictionary;
+  // Bit i of words[i / 64] is set iff the project with id i is in the set. Never has trailing
+  // zero words, so equal sets have equal arrays.
+  private final long[] words;
+
+  private ProjectSet(ProjectDictionary dictionary, long[] words) {
+    this.dictionary = dictionary;
+    this.words = words;
+  }
+
+  /**
+   * Creates a set of the given projects, interning their names.
+   *
+   * @param dictionary Dictionary to take the ids from.
+   * @param projects Names of the projects.
+   * @return The set of projects.
+   */
+  static ProjectSet of(ProjectDictionary dictionary, Iterable<String> projects) {
+    BitSet bits = new BitSet();
+    for (String project : projects) {
+      bits.set(dictionary.intern(project));
+    }
+    return bits.isEmpty() ? EMPTY : new ProjectSet(dictionary, bits.toLongArray());
+  }
+
+  boolean contains(String project) {
+    if (words.length == 0) {
+      return false;
+    }
+    int id = dictionary.getId(project);
+    return id >= 0 && (id >>> 6) < words.length && (words[id >>> 6] & (1L << id)) != 0;
+  }
+
+  boolean isEmpty() {
+    return words.length == 0;
+  }
+
+  int size() {
+    int size = 0;
+    for (long word : words) {
+      size += Long.bitCount(word);
+    }
+    return size;
+  }
+
+  ProjectSet and(ProjectSet other) {
+    long[] result = new long[Math.min(words.length, other.words.length)];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = words[i] & other.words[i];
+    }
+    return create(result, other);
+  }
+
+  ProjectSet or(ProjectSet other) {
+    if (other.isEmpty()) {
+      return this;
+    }
+    if (isEmpty()) {
+      return other;
+    }
+    long[] longer = words.length >= other.words.length ? words : other.words;
+    long[] shorter = longer == words ? other.words : words;
+    long[] result = longer.clone();
+    for (int i = 0; i < shorter.length; i++) {
+      result[i] |= shorter[i];
+    }
+    return create(result, other);
+  }
+
+  ProjectSet andNot(ProjectSet other) {
+    if (isEmpty() || other.isEmpty()) {
+      return this;
+    }
+    long[] result = words.clone();
+    for (int i = 0; i < Math.min(result.length, other.words.length); i++) {
+      result[i] &= ~other.words[i];
+    }
+    return create(result, other);
+  }
+
+  private ProjectSet create(long[] result, ProjectSet other) {
+    int length = result.length;
+    while (length > 0 && result[length - 1] == 0) {
+      length--;
+    }
+    if (length == 0) {
+      return EMPTY;
+    }
+    return new ProjectSet(
+        dictionary != null ? dictionary : other.dictionary,
+        length == result.length ? result : Arrays.copyOf(result, length));
+  }
+
+  /**
+   * Returns the names of the projects in this set.
+   *
+   * @return The project names, ordered by id.
+   */
+  ImmutableSet<String> toNames() {
+    ImmutableSet.Builder<String> names = ImmutableSet.builder();
+    for (int i = 0; i < words.length; i++) {
+      long word = words[i];
+      while (word != 0) {
+        names.add(dictionary.getName(i * 64 + Long.numberOfTrailingZeros(word)));
+        word &= word - 1;
+      }
+    }
+    return names.build();
+  }
+
+  /**
+   * Estimates the heap used by this set.
+   *
+   * @return The estimated size in bytes.
+   */
+  long estimateHeapBytes() {
+    // Object headers and fields of the set and its array, plus the words.
+    return 40L + 8L * words.length;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof ProjectSet && Arrays.equals(words, ((ProjectSet) o).words);
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(words);
+  }
+
+  @Override
+  public String toString() {
+    return toNames().toString();
+  }
+}
@@ -15,6 +15,7 @@
 package com.googlesource.gerrit.plugins.automerger;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -22,28 +23,75 @@ import java.util.Map;
 /** Class to construct a query with escaped arguments. */
 public class QueryBuilder {
   private Map<String, String> queryStringMap;
+  // Escaped values of the parameters added as a group, which are not in queryStringMap.
+  private Map<String, List<String>> groupMap;
 
   public QueryBuilder() {
     this.queryStringMap = new HashMap<>();
+    this.groupMap = new HashMap<>();
   }
 
   public void addParameter(String key, String value) throws InvalidQueryParameterException {
     if (key == null || value == null) {
       throw new InvalidQueryParameterException("Cannot use null value for key or value of query.");
     }
+    groupMap.remove(key);
+    queryStringMap.put(key, escape(value));
+  }
+
+  /**
+   * Adds a parameter that matches any of the given values, such as {@code (branch:"a" OR
+   * branch:"b")}.
+   *
+   * @param key Name of the parameter.
+   * @param values Values to match; must not be empty.
+   * @throws InvalidQueryParameterException
+   */
+  public void addParameterGroup(String key, Collection<String> values)
+      throws InvalidQueryParameterException {
+    if (key == null || values == null || values.isEmpty()) {
+      throw new InvalidQueryParameterException(
+          "Cannot use null key or null or empty values for query.");
+    }
+    List<String> escapedValues = new ArrayList<>();
+    for (String value : values) {
+      if (value == null) {
+        throw new InvalidQueryParameterException(
+            "Cannot use null value for key or value of query.");
+      }
+      escapedValues.add(escape(value));
+    }
+    if (escapedValues.size() == 1) {
+      groupMap.remove(key);
+      queryStringMap.put(key, escapedValues.get(0));
+    } else {
+      queryStringMap.remove(key);
+      groupMap.put(key, escapedValues);
+    }
+  }
+
+  private static String escape(String value) throws InvalidQueryParameterException {
     if (value.contains("\"") && (value.contains("{") || value.contains("}"))) {
       // Gerrit does not support search string escaping as of 5/16/2017
       // see https://bugs.chromium.org/p/gerrit/issues/detail?id=5617
       throw new InvalidQueryParameterException(
           "Gerrit does not support both quotes and braces in a query.");
     } else if (value.contains("\"")) {
-      queryStringMap.put(key, "{" + value + "}");
+      return "{" + value + "}";
     } else {
-      queryStringMap.put(key, "\"" + value + "\"");
+      return "\"" + value + "\"";
     }
   }
 
+  /**
+   * Removes a parameter from the query.
+   *
+   * @param key Name of the parameter.
+   * @return The escaped value of the parameter, or null if it was not set or was set to a group of
+   *     several values.
+   */
   public String removeParameter(String key) {
+    groupMap.remove(key);
     return queryStringMap.remove(key);
   }
 
@@ -52,6 +100,13 @@ public class QueryBuilder {
     for (Map.Entry<String, String> entry : queryStringMap.entrySet()) {
       queryStringList.add(entry.getKey() + ":" + entry.getValue());
     }
+    for (Map.Entry<String, List<String>> entry : groupMap.entrySet()) {
+      List<String> terms = new ArrayList<>();
+      for (String value : entry.getValue()) {
+        terms.add(entry.getKey() + ":" + value);
+      }
+      queryStringList.add("(" + String.join(" OR ", terms) + ")");
+    }
     return String.join(" ", queryStringList);
   }
 }
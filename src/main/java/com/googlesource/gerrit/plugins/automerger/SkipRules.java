@@ -0,0 +1,89 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.automerger;
+
+import com.google.common.base.Joiner;
+import com.google.re2j.Matcher;
+import com.google.re2j.Pattern;
+import com.google.re2j.PatternSyntaxException;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Compiled blankMerge and alwaysBlankMerge rules.
+ *
+ * <p>Both rule lists are compiled into a single pattern of the form {@code ()(?:always)|(?:blank)}.
+ * The empty group only takes part in the match when the alwaysBlankMerge alternative matched, so
+ * one pass over the commit message tells which kind of rule applies. Alternation prefers the
+ * first alternative, so alwaysBlankMerge wins when both match.
+ */
+class SkipRules {
+  /** Kind of rule a commit message matched. */
+  enum Match {
+    NONE,
+    BLANK_MERGE,
+    ALWAYS_BLANK_MERGE
+  }
+
+  private final Pattern pattern;
+  private final PatternSyntaxException error;
+
+  private SkipRules(Pattern pattern, PatternSyntaxException error) {
+    this.pattern = pattern;
+    this.error = error;
+  }
+
+  /**
+   * Compiles the given rules.
+   *
+   * <p>As with a single rule list joined with "|", an empty list only matches an empty message.
+   * An invalid pattern is not reported until the rules are first used, so that it does not take
+   * the rest of the config down with it.
+   *
+   * @param alwaysBlankMerge Patterns for always skipping changes.
+   * @param blankMerge Patterns for skipping changes unless mergeAll is set.
+   * @return The compiled rules.
+   */
+  static SkipRules compile(List<String> alwaysBlankMerge, List<String> blankMerge) {
+    String regex = "()(?:" + join(alwaysBlankMerge) + ")|(?:" + join(blankMerge) + ")";
+    try {
+      return new SkipRules(Pattern.compile(regex, Pattern.DOTALL), null);
+    } catch (PatternSyntaxException e) {
+      return new SkipRules(null, e);
+    }
+  }
+
+  private static String join(List<String> patterns) {
+    return Joiner.on("|").join(new LinkedHashSet<>(patterns));
+  }
+
+  /**
+   * Matches the whole commit message against the rules.
+   *
+   * @param commitMessage Commit message of the change.
+   * @return Which kind of rule matched, if any.
+   * @throws PatternSyntaxException if one of the rules is not a valid pattern.
+   */
+  Match match(String commitMessage) {
+    if (error != null) {
+      throw error;
+    }
+    Matcher matcher = pattern.matcher(commitMessage);
+    if (!matcher.matches()) {
+      return Match.NONE;
+    }
+    return matcher.group(1) != null ? Match.ALWAYS_BLANK_MERGE : Match.BLANK_MERGE;
+  }
+}
@@ -0,0 +1,145 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.automerger;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The page of open changes of a topic being searched, indexed by branch and by the second parent of
+ * their current revision.
+ *
+ * <p>A downstream merge is a change whose current revision has the upstream revision as its second
+ * parent, so lookups of existing merges are answered from the indexes instead of another query.
+ * Only the page read last is kept, so memory stays bounded however large the topic is. A topic is
+ * {@link #isComplete() complete} only if it fit on one page: pages are read by offset, so several
+ * pages can skip a change that was updated in between. Not thread safe.
+ */
+class TopicChanges {
+  private final List<ChangeSummary> changes = new ArrayList<>();
+  // Keyed by "secondParent branch".
+  private final ListMultimap<String, ChangeSummary> merges = ArrayListMultimap.create();
+  private final Map<String, ChangeSummary> byCurrentRevision = new HashMap<>();
+  private int read;
+  private boolean more = true;
+  private boolean complete;
+
+  TopicChanges() {}
+
+  /**
+   * Starts reading where the given changes left off, without their page.
+   *
+   * @param previous Changes of the same topic read so far.
+   */
+  TopicChanges(TopicChanges previous) {
+    read = previous.read;
+    more = previous.more;
+  }
+
+  /**
+   * Indexes all the changes of a topic.
+   *
+   * @param changes Changes with their current revision and its parents.
+   * @return The indexed changes.
+   */
+  static TopicChanges of(List<ChangeSummary> changes) {
+    TopicChanges topicChanges = new TopicChanges();
+    topicChanges.add(changes, false);
+    return topicChanges;
+  }
+
+  /**
+   * Replaces the changes with the next page of changes of the topic.
+   *
+   * @param page Changes with their current revision and its parents.
+   * @param more Whether the topic has more changes after these.
+   */
+  void add(List<ChangeSummary> page, boolean more) {
+    complete = read == 0 && !more;
+    read += page.size();
+    this.more = more;
+    changes.clear();
+    merges.clear();
+    byCurrentRevision.clear();
+    for (ChangeSummary change : page) {
+      if (change.getCurrentRevision() == null) {
+        continue;
+      }
+      changes.add(change);
+      // The first change wins, as it did when the query results were searched in order.
+      byCurrentRevision.putIfAbsent(change.getCurrentRevision(), change);
+      String secondParent = change.getSecondParent();
+      if (secondParent != null) {
+        merges.put(key(secondParent, change.getBranch()), change);
+      }
+    }
+  }
+
+  private static String key(String secondParent, String branch) {
+    return secondParent + " " + branch;
+  }
+
+  /**
+   * Returns how many results have been read, which is where the next page starts.
+   *
+   * @return The number of results read.
+   */
+  int getRead() {
+    return read;
+  }
+
+  boolean hasMore() {
+    return more;
+  }
+
+  /**
+   * Returns whether the page holds every open change of the topic, read in a single query.
+   *
+   * @return Whether lookups that find nothing can be trusted.
+   */
+  boolean isComplete() {
+    return complete;
+  }
+
+  ImmutableList<ChangeSummary> getChanges() {
+    return ImmutableList.copyOf(changes);
+  }
+
+  /**
+   * Returns the changes on the page on the given branch that merge the given revision.
+   *
+   * @param upstreamRevision Revision that must be the second parent of the current revision.
+   * @param branch Branch of the changes.
+   * @return The matching changes, in query order.
+   */
+  ImmutableList<ChangeSummary> getMerges(String upstreamRevision, String branch) {
+    return ImmutableList.copyOf(merges.get(key(upstreamRevision, branch)));
+  }
+
+  /**
+   * Returns the change on the page whose current revision is the given one.
+   *
+   * @param revision The current revision.
+   * @return The change, or null if no change on the page is at that revision.
+   */
+  ChangeSummary getByCurrentRevision(String revision) {
+    return byCurrentRevision.get(revision);
+  }
+}
@@ -0,0 +1,130 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.automerger;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class AncestryCacheTest {
+  private final AncestryCache cache =
+      new AncestryCache(CacheBuilder.newBuilder().build(), CacheBuilder.newBuilder().build());
+
+  @Test
+  public void topicTest() throws Exception {
+    assertThat(cache.getTopic("aaaa")).isNull();
+    cache.putTopic("aaaa", "topic", ImmutableSet.of(1), cache.getSequence());
+    cache.putTopic("bbbb", null, ImmutableSet.of(), cache.getSequence());
+    assertThat(cache.getTopic("aaaa").topic).isEqualTo("topic");
+    assertThat(cache.getTopic("bbbb").topic).isNull();
+
+    // A change uploaded at the commit may give it a topic.
+    cache.invalidate(2, "bbbb");
+    assertThat(cache.getTopic("aaaa")).isNotNull();
+    assertThat(cache.getTopic("bbbb")).isNull();
+
+    cache.invalidate(1, null);
+    assertThat(cache.getTopic("aaaa")).isNull();
+  }
+
+  @Test
+  public void originalChangeTest() throws Exception {
+    cache.putOriginalChange(
+        3,
+        "cccc",
+        1,
+        ImmutableSet.of(3, 2, 1),
+        ImmutableSet.of("cccc", "bbbb", "aaaa"),
+        ImmutableSet.of("topic"),
+        0);
+    assertThat(cache.getOriginalChange(3, "cccc").originalChange).isEqualTo(1);
+    assertThat(cache.getOriginalChange(3, "dddd")).isNull();
+    assertThat(cache.getOriginalChange(2, "cccc")).isNull();
+
+    cache.invalidate(4, "eeee");
+    assertThat(cache.getOriginalChange(3, "cccc")).isNotNull();
+    // A hop in the middle got a new patch set.
+    cache.invalidate(2, "ffff");
+    assertThat(cache.getOriginalChange(3, "cccc")).isNull();
+  }
+
+  @Test
+  public void topicEditTest() throws Exception {
+    cache.putOriginalChange(
+        3,
+        "cccc",
+        3,
+        ImmutableSet.of(3),
+        ImmutableSet.of("cccc", "bbbb"),
+        ImmutableSet.of("topic"),
+        0);
+    cache.invalidate(4, "dddd", ImmutableSet.of("other"));
+    assertThat(cache.getOriginalChange(3, "cccc")).isNotNull();
+
+    // A change at the second parent may have been moved into the topic.
+    cache.invalidate(4, "dddd", ImmutableSet.of("", "topic"));
+    assertThat(cache.getOriginalChange(3, "cccc")).isNull();
+
+    long sequence = cache.getSequence();
+    cache.invalidate(4, "dddd", ImmutableSet.of("topic"));
+    cache.putOriginalChange(
+        3,
+        "cccc",
+        3,
+        ImmutableSet.of(3),
+        ImmutableSet.of("cccc", "bbbb"),
+        ImmutableSet.of("topic"),
+        sequence);
+    assertThat(cache.getOriginalChange(3, "cccc")).isNull();
+  }
+
+  @Test
+  public void staleResolutionTest() throws Exception {
+    long sequence = cache.getSequence();
+    cache.invalidate(1, "eeee");
+    cache.putTopic("aaaa", "topic", ImmutableSet.of(1), sequence);
+    assertThat(cache.getTopic("aaaa")).isNull();
+
+    sequence = cache.getSequence();
+    cache.invalidate(5, "aaaa");
+    cache.putTopic("aaaa", "topic", ImmutableSet.of(1), sequence);
+    assertThat(cache.getTopic("aaaa")).isNull();
+  }
+
+  @Test
+  public void unrelatedInvalidationTest() throws Exception {
+    long sequence = cache.getSequence();
+    cache.invalidate(5, "eeee");
+    cache.putTopic("aaaa", "topic", ImmutableSet.of(1), sequence);
+    assertThat(cache.getTopic("aaaa").topic).isEqualTo("topic");
+  }
+
+  @Test
+  public void replacedResolutionTest() throws Exception {
+    cache.putTopic("aaaa", "topic", ImmutableSet.of(1), cache.getSequence());
+    cache.putTopic("aaaa", "other", ImmutableSet.of(2), cache.getSequence());
+
+    // The replaced resolution no longer depends on change 1.
+    cache.invalidate(1, null);
+    assertThat(cache.getTopic("aaaa").topic).isEqualTo("other");
+    cache.invalidate(2, null);
+    assertThat(cache.getTopic("aaaa")).isNull();
+  }
+}
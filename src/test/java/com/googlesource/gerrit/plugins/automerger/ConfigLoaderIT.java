@@ -28,9 +28,6 @@ import com.google.gerrit.reviewdb.client.Account;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.reviewdb.client.RefNames;
 import com.google.gerrit.server.CurrentUser;
-import com.google.gerrit.server.config.AllProjectsName;
-import com.google.gerrit.server.config.CanonicalWebUrl;
-import com.google.gerrit.server.config.PluginConfigFactory;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import java.io.InputStream;
@@ -48,9 +45,6 @@ import org.junit.Test;
     sysModule = "com.googlesource.gerrit.plugins.automerger.AutomergerModule")
 public class ConfigLoaderIT extends LightweightPluginDaemonTest {
   private ConfigLoader configLoader;
-  @Inject private AllProjectsName allProjectsName;
-  @Inject private PluginConfigFactory cfgFactory;
-  @Inject @CanonicalWebUrl String canonicalGerritWebUrl;
   @Inject private Provider<CurrentUser> currentUser;
   @Inject private ProjectOperations projectOperations;
   private Project.NameKey manifestNameKey;
@@ -100,6 +94,29 @@ public class ConfigLoaderIT extends LightweightPluginDaemonTest {
     assertThat(configLoader.getProjectsInScope("master", "ds_four").isEmpty()).isTrue();
   }
 
+  @Test
+  public void getProjectsInScope_manifestUpdated() throws Exception {
+    defaultSetup("alternate.config");
+    assertThat(configLoader.getProjectsInScope("master", "ds_two"))
+        .containsExactly("platform/whee", "whuu");
+
+    updateTestRepo("ds_one.xml", manifestNameKey, "ds_two", "default.xml");
+    assertThat(configLoader.getProjectsInScope("master", "ds_two")).isEmpty();
+  }
+
+  @Test
+  public void getProjectsInScope_manifestInclude() throws Exception {
+    defaultSetup("alternate.config");
+    updateTestRepo("ds_two.xml", manifestNameKey, "ds_two", "base.xml");
+    updateTestRepo("include.xml", manifestNameKey, "ds_two", "default.xml");
+    assertThat(configLoader.getProjectsInScope("master", "ds_two"))
+        .containsExactly("platform/whee", "whuu", "platform/whaa");
+
+    updateTestRepo("ds_one.xml", manifestNameKey, "ds_two", "base.xml");
+    assertThat(configLoader.getProjectsInScope("master", "ds_two"))
+        .containsExactly("platform/whaa");
+  }
+
   @Test
   public void isSkipMergeTest_noSkip() throws Exception {
     defaultSetup("automerger.config");
@@ -148,6 +165,19 @@ public class ConfigLoaderIT extends LightweightPluginDaemonTest {
         .isFalse();
   }
 
+  @Test
+  public void isSkipMergeTest_branchPairOverride() throws Exception {
+    defaultSetup("skip_rules.config");
+    assertThat(configLoader.isSkipMerge("master", "ds_one", "test \n SKIP ONE")).isTrue();
+    assertThat(configLoader.isSkipMerge("master", "ds_one", "test \n DO NOT MERGE")).isFalse();
+    assertThat(configLoader.isSkipMerge("master", "ds_one", "test \n DO NOT MERGE ANYWHERE"))
+        .isTrue();
+
+    assertThat(configLoader.isSkipMerge("master", "ds_two", "test \n SKIP TWO")).isTrue();
+    assertThat(configLoader.isSkipMerge("master", "ds_two", "test \n DO NOT MERGE ANYWHERE"))
+        .isFalse();
+  }
+
   @Test
   public void upstreamBranchesTest() throws Exception {
     defaultSetup("automerger.config");
@@ -165,6 +195,22 @@ public class ConfigLoaderIT extends LightweightPluginDaemonTest {
         .isEqualTo(expectedBranches);
   }
 
+  @Test
+  public void getAllUpstreamBranchesTest() throws Exception {
+    defaultSetup("automerger.config");
+    assertThat(configLoader.getAllUpstreamBranches("ds_three", "platform/some/project"))
+        .containsExactly("ds_two", "master");
+    assertThat(configLoader.getAllUpstreamBranches("master", "platform/some/project")).isEmpty();
+  }
+
+  @Test
+  public void getAllUpstreamBranchesTest_diamond() throws Exception {
+    defaultSetup("diamond.config");
+    assertThat(configLoader.getAllUpstreamBranches("bottom", "platform/some/project"))
+        .containsExactly("left", "right", "master");
+    assertThat(configLoader.getAllUpstreamBranches("bottom", "whoo")).isEmpty();
+  }
+
   @Test
   public void downstreamBranchesTest() throws Exception {
     defaultSetup("automerger.config");
@@ -205,6 +251,72 @@ public class ConfigLoaderIT extends LightweightPluginDaemonTest {
         .isEqualTo(expectedBranches);
   }
 
+  @Test
+  public void getAllDownstreamBranchesTest_diamond() throws Exception {
+    defaultSetup("diamond.config");
+    assertThat(configLoader.getAllDownstreamBranches("master", "platform/some/project"))
+        .containsExactly("left", "right", "bottom");
+    assertThat(configLoader.getAllDownstreamBranches("left", "platform/some/project"))
+        .containsExactly("bottom");
+    assertThat(configLoader.getAllDownstreamBranches("master", "whoo")).isEmpty();
+  }
+
+  @Test
+  public void getAllDownstreamBranchesTest_cycle() throws Exception {
+    defaultSetup("cycle.config");
+    ConfigInvalidException thrown =
+        assertThrows(
+            ConfigInvalidException.class,
+            () -> configLoader.getAllDownstreamBranches("master", "platform/some/project"));
+    assertThat(thrown)
+        .hasMessageThat()
+        .contains(
+            "Automerger config branch pairs form a cycle: master -> ds_one -> ds_two -> master");
+  }
+
+  @Test
+  public void getAllDownstreamBranchesTest_manifestUpdated() throws Exception {
+    defaultSetup("automerger.config");
+    assertThat(configLoader.getAllDownstreamBranches("master", "platform/whee"))
+        .containsExactly("ds_one");
+
+    updateTestRepo("ds_two.xml", manifestNameKey, "ds_one", "default.xml");
+    assertThat(configLoader.getAllDownstreamBranches("master", "platform/whee")).isEmpty();
+  }
+
+  @Test
+  public void downstreamBranchesTest_manifestUpdated() throws Exception {
+    defaultSetup("automerger.config");
+    assertThat(configLoader.getDownstreamBranches("master", "platform/whee"))
+        .containsExactly("ds_one");
+    assertThat(configLoader.getDownstreamBranches("master", "platform/some/project"))
+        .containsExactly("ds_two");
+    assertThat(configLoader.getUpstreamBranches("ds_one", "platform/whee"))
+        .containsExactly("master");
+
+    updateTestRepo("ds_two.xml", manifestNameKey, "ds_one", "default.xml");
+    assertThat(configLoader.getDownstreamBranches("master", "platform/whee")).isEmpty();
+    assertThat(configLoader.getDownstreamBranches("master", "platform/some/project"))
+        .containsExactly("ds_two");
+    assertThat(configLoader.getUpstreamBranches("ds_one", "platform/whee")).isEmpty();
+
+    updateTestRepo("ds_one.xml", manifestNameKey, "ds_one", "default.xml");
+    assertThat(configLoader.getDownstreamBranches("master", "platform/whee"))
+        .containsExactly("ds_one");
+  }
+
+  @Test
+  public void configUpdateIsPickedUpTest() throws Exception {
+    defaultSetup("automerger.config");
+    assertThat(configLoader.getDownstreamBranches("master", "platform/some/project"))
+        .containsExactly("ds_two");
+    assertThat(configLoader.getMinAutomergeVote()).isEqualTo(-2);
+
+    pushConfig("alternate.config");
+    assertThat(configLoader.getDownstreamBranches("master", "platform/some/project")).isEmpty();
+    assertThat(configLoader.getMinAutomergeVote()).isEqualTo(-3);
+  }
+
   private void defaultSetup(String resourceName) throws Exception {
     projectOperations.newProject().name(name("All-Projects")).create();
     manifestNameKey = projectOperations.newProject().name(name(("platform/manifest"))).create();
@@ -278,6 +390,21 @@ public class ConfigLoaderIT extends LightweightPluginDaemonTest {
     }
   }
 
+  private void updateTestRepo(
+      String resourceName, Project.NameKey projectNameKey, String branchName, String filename)
+      throws Exception {
+    TestRepository<InMemoryRepository> repo = cloneProject(projectNameKey, admin);
+    GitUtil.fetch(repo, "refs/heads/" + branchName + ":" + branchName);
+    repo.reset(branchName);
+    try (InputStream in = getClass().getResourceAsStream(resourceName)) {
+      String resourceString = CharStreams.toString(new InputStreamReader(in, Charsets.UTF_8));
+
+      PushOneCommit push =
+          pushFactory.create(admin.newIdent(), repo, "some subject", filename, resourceString);
+      push.to("refs/heads/" + branchName).assertOkStatus();
+    }
+  }
+
   private void pushConfig(String resourceName) throws Exception {
     TestRepository<InMemoryRepository> allProjectRepo = cloneProject(allProjects, admin);
     GitUtil.fetch(allProjectRepo, RefNames.REFS_CONFIG + ":config");
@@ -299,8 +426,6 @@ public class ConfigLoaderIT extends LightweightPluginDaemonTest {
 
   private void loadConfig(String configFilename) throws Exception {
     pushConfig(configFilename);
-    configLoader =
-        new ConfigLoader(
-            gApi, allProjectsName, "automerger", canonicalGerritWebUrl, cfgFactory, currentUser);
+    configLoader = plugin.getSysInjector().getInstance(ConfigLoader.class);
   }
 }
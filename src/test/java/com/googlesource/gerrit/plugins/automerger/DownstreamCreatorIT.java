@@ -37,7 +37,9 @@ import com.google.gerrit.acceptance.PushOneCommit;
 import com.google.gerrit.acceptance.TestPlugin;
 import com.google.gerrit.acceptance.testsuite.group.GroupOperations;
 import com.google.gerrit.acceptance.testsuite.project.ProjectOperations;
+import com.google.gerrit.acceptance.testsuite.request.RequestScopeOperations;
 import com.google.gerrit.common.Nullable;
+import com.google.gerrit.common.data.LabelFunction;
 import com.google.gerrit.extensions.api.accounts.AccountApi;
 import com.google.gerrit.extensions.api.changes.ChangeApi;
 import com.google.gerrit.extensions.api.changes.RebaseInput;
@@ -50,6 +52,7 @@ import com.google.gerrit.extensions.restapi.BinaryResult;
 import com.google.gerrit.extensions.restapi.RestApiException;
 import com.google.gerrit.reviewdb.client.AccountGroup;
 import com.google.gerrit.reviewdb.client.BranchNameKey;
+import com.google.gerrit.reviewdb.client.Change;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.reviewdb.client.RefNames;
 import com.google.gerrit.server.group.SystemGroupBackend;
@@ -67,6 +70,9 @@ import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
 import org.eclipse.jgit.junit.TestRepository;
 import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
 import org.junit.Test;
 
 @TestPlugin(
@@ -75,6 +81,7 @@ import org.junit.Test;
 public class DownstreamCreatorIT extends LightweightPluginDaemonTest {
   @Inject private GroupOperations groupOperations;
   @Inject private ProjectOperations projectOperations;
+  @Inject private RequestScopeOperations requestScopeOperations;
 
   @Test
   public void testExpectedFlow() throws Exception {
@@ -926,6 +933,180 @@ public class DownstreamCreatorIT extends LightweightPluginDaemonTest {
     assertCodeReview(dsTwoChangeInfo.id, 1, "autogenerated:Automerger");
   }
 
+  @Test
+  public void testContextUser_downstreamHighestVoteOfMiddleHop() throws Exception {
+    // Branch flow for contextUser is master -> ds_one -> ds_two
+    Project.NameKey manifestNameKey = defaultSetup();
+    // Create initial change
+    PushOneCommit.Result initialResult = createChange("subject", "filename", "echo Hello");
+    // Project name is scoped by test, so we need to get it from our initial change
+    Project.NameKey projectNameKey = initialResult.getChange().project();
+    String projectName = projectNameKey.get();
+    createBranch(BranchNameKey.create(projectName, "ds_one"));
+    createBranch(BranchNameKey.create(projectName, "ds_two"));
+    initialResult.assertOkStatus();
+    merge(initialResult);
+
+    AccountApi contextUserApi = gApi.accounts().create("randomContextUser");
+    String contextUserGroup = groupOperations.newGroup().name("contextUserGroup").create().get();
+    gApi.groups().id(contextUserGroup).addMembers(contextUserApi.get().name);
+
+    // Grant +2 to context user, since it doesn't have it by default
+    grantLabel(
+        "Code-Review",
+        -2,
+        2,
+        projectNameKey,
+        "refs/heads/*",
+        false,
+        AccountGroup.UUID.parse(gApi.groups().id(contextUserGroup).get().id),
+        false);
+    pushContextUserConfig(
+        manifestNameKey.get(), projectName, contextUserApi.get()._accountId.toString());
+
+    // After we upload our config, we upload a new patchset to create the downstreams
+    PushOneCommit.Result result =
+        createChange(testRepo, "master", "subject", "filename2", "echo Hello", "sometopic");
+    result.assertOkStatus();
+    List<ChangeInfo> changesInTopic =
+        gApi.changes()
+            .query("topic: " + gApi.changes().id(result.getChangeId()).topic())
+            .withOptions(CURRENT_REVISION, CURRENT_COMMIT)
+            .get();
+    assertThat(changesInTopic).hasSize(3);
+
+    List<ChangeInfo> sortedChanges = sortedChanges(changesInTopic);
+    ChangeInfo dsOneChangeInfo = sortedChanges.get(0);
+    assertThat(dsOneChangeInfo.branch).isEqualTo("ds_one");
+    ChangeInfo dsTwoChangeInfo = sortedChanges.get(1);
+    assertThat(dsTwoChangeInfo.branch).isEqualTo("ds_two");
+    ChangeInfo masterChangeInfo = sortedChanges.get(2);
+    assertThat(masterChangeInfo.branch).isEqualTo("master");
+
+    // A human +2 on ds_one is carried down to ds_two
+    approve(dsOneChangeInfo.id);
+    assertCodeReview(dsOneChangeInfo.id, 2, null);
+    assertCodeReview(dsTwoChangeInfo.id, 2, "autogenerated:Automerger");
+
+    // +1 master; ds_two keeps the highest vote of ds_one, not the vote of master
+    recommend(masterChangeInfo.id);
+    assertCodeReview(masterChangeInfo.id, 1, null);
+    assertCodeReview(dsOneChangeInfo.id, 2, null);
+    assertCodeReview(dsTwoChangeInfo.id, 2, "autogenerated:Automerger");
+  }
+
+  @Test
+  public void testContextUser_votesAlreadyUpToDate() throws Exception {
+    List<ChangeInfo> sortedChanges = createContextUserChanges("upToDateContextUser");
+    ChangeInfo dsOneChangeInfo = sortedChanges.get(0);
+    ChangeInfo masterChangeInfo = sortedChanges.get(2);
+
+    approve(masterChangeInfo.id);
+    assertCodeReview(dsOneChangeInfo.id, 2, "autogenerated:Automerger");
+    int messageCount = gApi.changes().id(dsOneChangeInfo.id).messages().size();
+    int metaCommitCount = getMetaCommitCount(dsOneChangeInfo);
+
+    // A +1 on master changes a vote, but not the highest one, so ds_one is left alone
+    requestScopeOperations.setApiUser(user.id());
+    recommend(masterChangeInfo.id);
+    requestScopeOperations.setApiUser(admin.id());
+    assertCodeReview(masterChangeInfo.id, 2, null);
+    assertCodeReview(dsOneChangeInfo.id, 2, "autogenerated:Automerger");
+    assertThat(gApi.changes().id(dsOneChangeInfo.id).messages()).hasSize(messageCount);
+    assertThat(getMetaCommitCount(dsOneChangeInfo)).isEqualTo(metaCommitCount);
+  }
+
+  @Test
+  public void testContextUser_votesInOneReview() throws Exception {
+    List<ChangeInfo> sortedChanges = createContextUserChanges("batchContextUser");
+    ChangeInfo dsOneChangeInfo = sortedChanges.get(0);
+    ChangeInfo masterChangeInfo = sortedChanges.get(2);
+    configLabel("Verified", LabelFunction.NO_OP);
+    grantLabel(
+        "Verified",
+        -1,
+        1,
+        project,
+        "refs/heads/*",
+        false,
+        SystemGroupBackend.REGISTERED_USERS,
+        false);
+    int messageCount = gApi.changes().id(dsOneChangeInfo.id).messages().size();
+
+    gApi.changes()
+        .id(masterChangeInfo.id)
+        .current()
+        .review(ReviewInput.approve().label("Verified", 1));
+    assertCodeReview(dsOneChangeInfo.id, 2, "autogenerated:Automerger");
+    assertThat(getVote(dsOneChangeInfo.id, "Verified").get().value).isEqualTo(1);
+    // Both labels were given in a single review
+    assertThat(gApi.changes().id(dsOneChangeInfo.id).messages()).hasSize(messageCount + 1);
+  }
+
+  @Test
+  public void testContextUser_restrictedLabelVotedSeparately() throws Exception {
+    List<ChangeInfo> sortedChanges = createContextUserChanges("restrictedContextUser");
+    ChangeInfo dsOneChangeInfo = sortedChanges.get(0);
+    ChangeInfo dsTwoChangeInfo = sortedChanges.get(1);
+    ChangeInfo masterChangeInfo = sortedChanges.get(2);
+    // Only admins may vote on Verified, so the context user's review of both labels is rejected
+    configLabel("Verified", LabelFunction.NO_OP);
+    grantLabel("Verified", -1, 1, project, "refs/heads/*", false, adminGroupUuid(), false);
+
+    gApi.changes()
+        .id(masterChangeInfo.id)
+        .current()
+        .review(ReviewInput.approve().label("Verified", 1));
+    // Code-Review is still given on its own
+    assertCodeReview(dsOneChangeInfo.id, 2, "autogenerated:Automerger");
+    assertCodeReview(dsTwoChangeInfo.id, 2, "autogenerated:Automerger");
+    assertThat(getVote(dsOneChangeInfo.id, "Verified")).isEmpty();
+    assertThat(getVote(dsTwoChangeInfo.id, "Verified")).isEmpty();
+  }
+
+  @Test
+  public void testContextUser_ownWritesWrittenOnce() throws Exception {
+    List<ChangeInfo> sortedChanges = createContextUserChanges("ownWritesContextUser");
+    ChangeInfo dsOneChangeInfo = sortedChanges.get(0);
+    ChangeInfo dsTwoChangeInfo = sortedChanges.get(1);
+    ChangeInfo masterChangeInfo = sortedChanges.get(2);
+    int dsOneMetaCommitCount = getMetaCommitCount(dsOneChangeInfo);
+    int dsTwoMetaCommitCount = getMetaCommitCount(dsTwoChangeInfo);
+
+    // Our votes on ds_one and ds_two do not start another pass over the tree
+    approve(masterChangeInfo.id);
+    assertCodeReview(dsOneChangeInfo.id, 2, "autogenerated:Automerger");
+    assertCodeReview(dsTwoChangeInfo.id, 2, "autogenerated:Automerger");
+    assertThat(getMetaCommitCount(dsOneChangeInfo)).isEqualTo(dsOneMetaCommitCount + 1);
+    assertThat(getMetaCommitCount(dsTwoChangeInfo)).isEqualTo(dsTwoMetaCommitCount + 1);
+
+    // Neither do our topic edits
+    gApi.changes().id(masterChangeInfo.id).topic("othertopic");
+    assertThat(gApi.changes().id(dsOneChangeInfo.id).topic()).isEqualTo("othertopic");
+    assertThat(gApi.changes().id(dsTwoChangeInfo.id).topic()).isEqualTo("othertopic");
+    assertThat(getMetaCommitCount(dsOneChangeInfo)).isEqualTo(dsOneMetaCommitCount + 2);
+    assertThat(getMetaCommitCount(dsTwoChangeInfo)).isEqualTo(dsTwoMetaCommitCount + 2);
+  }
+
+  @Test
+  public void testContextUser_downstreamEditsPropagate() throws Exception {
+    List<ChangeInfo> sortedChanges = createContextUserChanges("downstreamEditContextUser");
+    ChangeInfo dsOneChangeInfo = sortedChanges.get(0);
+    ChangeInfo dsTwoChangeInfo = sortedChanges.get(1);
+    ChangeInfo masterChangeInfo = sortedChanges.get(2);
+
+    // A human vote on ds_one is carried down to ds_two, but not up to master
+    approve(dsOneChangeInfo.id);
+    assertCodeReview(dsTwoChangeInfo.id, 2, "autogenerated:Automerger");
+    assertCodeReviewMissing(masterChangeInfo.id);
+
+    // So is a human topic edit on ds_one
+    String masterTopic = gApi.changes().id(masterChangeInfo.id).topic();
+    gApi.changes().id(dsOneChangeInfo.id).topic("dstopic");
+    assertThat(gApi.changes().id(dsTwoChangeInfo.id).topic()).isEqualTo("dstopic");
+    assertThat(gApi.changes().id(masterChangeInfo.id).topic()).isEqualTo(masterTopic);
+  }
+
   @Test
   public void testContextUser_mergeConflictOnDownstreamVotesOnTopLevel() throws Exception {
     // Branch flow for contextUser is master -> ds_one -> ds_two
@@ -1079,13 +1260,70 @@ public class DownstreamCreatorIT extends LightweightPluginDaemonTest {
     pushConfig(options, "context_user.config");
   }
 
+  // Creates a change on master and its merges to ds_one and ds_two, voted on by a new context
+  // user that may give Code-Review +2. Returns the ds_one, ds_two and master changes.
+  private ImmutableList<ChangeInfo> createContextUserChanges(String contextUserName)
+      throws Exception {
+    // Branch flow for contextUser is master -> ds_one -> ds_two
+    Project.NameKey manifestNameKey = defaultSetup();
+    PushOneCommit.Result initialResult = createChange("subject", "filename", "echo Hello");
+    Project.NameKey projectNameKey = initialResult.getChange().project();
+    String projectName = projectNameKey.get();
+    createBranch(BranchNameKey.create(projectName, "ds_one"));
+    createBranch(BranchNameKey.create(projectName, "ds_two"));
+    initialResult.assertOkStatus();
+    merge(initialResult);
+
+    AccountApi contextUserApi = gApi.accounts().create(contextUserName);
+    String contextUserGroup = groupOperations.newGroup().name("contextUserGroup").create().get();
+    gApi.groups().id(contextUserGroup).addMembers(contextUserApi.get().name);
+    grantLabel(
+        "Code-Review",
+        -2,
+        2,
+        projectNameKey,
+        "refs/heads/*",
+        false,
+        AccountGroup.UUID.parse(gApi.groups().id(contextUserGroup).get().id),
+        false);
+    pushContextUserConfig(
+        manifestNameKey.get(), projectName, contextUserApi.get()._accountId.toString());
+
+    PushOneCommit.Result result =
+        createChange(testRepo, "master", "subject", "filename2", "echo Hello", "sometopic");
+    result.assertOkStatus();
+    List<ChangeInfo> changesInTopic =
+        gApi.changes()
+            .query("topic: " + gApi.changes().id(result.getChangeId()).topic())
+            .withOptions(CURRENT_REVISION, CURRENT_COMMIT)
+            .get();
+    assertThat(changesInTopic).hasSize(3);
+    ImmutableList<ChangeInfo> sortedChanges = sortedChanges(changesInTopic);
+    assertThat(sortedChanges.get(0).branch).isEqualTo("ds_one");
+    assertThat(sortedChanges.get(1).branch).isEqualTo("ds_two");
+    assertThat(sortedChanges.get(2).branch).isEqualTo("master");
+    return sortedChanges;
+  }
+
+  private int getMetaCommitCount(ChangeInfo change) throws Exception {
+    try (Repository repo = repoManager.openRepository(Project.nameKey(change.project));
+        RevWalk rw = new RevWalk(repo)) {
+      Ref meta = repo.exactRef(RefNames.changeMetaRef(Change.id(change._number)));
+      rw.markStart(rw.parseCommit(meta.getObjectId()));
+      return Iterables.size(rw);
+    }
+  }
+
   private Optional<ApprovalInfo> getCodeReview(String id) throws RestApiException {
-    List<ApprovalInfo> approvals =
-        gApi.changes().id(id).get(DETAILED_LABELS).labels.get("Code-Review").all;
+    return getVote(id, "Code-Review");
+  }
+
+  private Optional<ApprovalInfo> getVote(String id, String label) throws RestApiException {
+    List<ApprovalInfo> approvals = gApi.changes().id(id).get(DETAILED_LABELS).labels.get(label).all;
     if (approvals == null) {
       return Optional.empty();
     }
-    return approvals.stream().max(comparing(a -> a.value));
+    return approvals.stream().filter(a -> a.value != null).max(comparing(a -> a.value));
   }
 
   private void assertCodeReview(String id, int expectedValue, @Nullable String expectedTag)
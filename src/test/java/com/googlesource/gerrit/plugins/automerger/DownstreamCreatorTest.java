@@ -0,0 +1,66 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.automerger;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.extensions.common.ApprovalInfo;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class DownstreamCreatorTest {
+  @Test
+  public void plainCommentDoesNotChangeVotesTest() throws Exception {
+    Map<String, ApprovalInfo> oldApprovals = new HashMap<>();
+    oldApprovals.put("Code-Review", approval(null));
+    oldApprovals.put("Verified", approval(null));
+    assertThat(
+            DownstreamCreator.changesVotes(
+                ImmutableMap.of("Code-Review", approval(2), "Verified", approval(0)),
+                oldApprovals))
+        .isFalse();
+    assertThat(DownstreamCreator.changesVotes(ImmutableMap.of(), ImmutableMap.of())).isFalse();
+    assertThat(DownstreamCreator.changesVotes(null, null)).isFalse();
+  }
+
+  @Test
+  public void changedVoteTest() throws Exception {
+    Map<String, ApprovalInfo> oldApprovals = new HashMap<>();
+    oldApprovals.put("Code-Review", approval(null));
+    oldApprovals.put("Verified", approval(0));
+    assertThat(
+            DownstreamCreator.changesVotes(
+                ImmutableMap.of("Code-Review", approval(2), "Verified", approval(1)),
+                oldApprovals))
+        .isTrue();
+    // Removing a vote changes it too.
+    assertThat(
+            DownstreamCreator.changesVotes(
+                ImmutableMap.of("Code-Review", approval(0)),
+                ImmutableMap.of("Code-Review", approval(2))))
+        .isTrue();
+  }
+
+  private static ApprovalInfo approval(Integer value) {
+    ApprovalInfo approval = new ApprovalInfo(1000000);
+    approval.value = value;
+    return approval;
+  }
+}
@@ -0,0 +1,140 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.automerger;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.extensions.client.ChangeStatus;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.extensions.common.CommitInfo;
+import com.google.gerrit.extensions.common.RevisionInfo;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class DownstreamIndexTest {
+  private final DownstreamIndex index = new DownstreamIndex();
+
+  @Test
+  public void mergesByBranchAndTopicTest() throws Exception {
+    update(change(2, "ds_one", "topic", "bbbb", "1111", "aaaa"));
+    update(change(3, "ds_two", "topic", "cccc", "2222", "aaaa"));
+    update(change(4, "ds_one", "other", "dddd", "3333", "aaaa"));
+    assertThat(index.getMerges("aaaa", "ds_one", "topic")).containsExactly(2);
+    assertThat(index.getMerges("aaaa", "ds_two", "topic")).containsExactly(3);
+    assertThat(index.getMerges("aaaa", "ds_one", "other")).containsExactly(4);
+    assertThat(index.getMerges("aaaa", "ds_three", "topic")).isEmpty();
+    assertThat(index.getMerges("1111", "ds_one", "topic")).isEmpty();
+  }
+
+  @Test
+  public void newPatchSetReplacesOldTest() throws Exception {
+    update(change(2, "ds_one", "topic", "bbbb", "1111", "aaaa"));
+    update(change(2, "ds_one", "topic", "eeee", "1111", "ffff"));
+    assertThat(index.getMerges("aaaa", "ds_one", "topic")).isEmpty();
+    assertThat(index.getMerges("ffff", "ds_one", "topic")).containsExactly(2);
+  }
+
+  @Test
+  public void closedOrNotMergeIsRemovedTest() throws Exception {
+    ChangeInfo merged = change(2, "ds_one", "topic", "bbbb", "1111", "aaaa");
+    update(merged);
+    merged.status = ChangeStatus.MERGED;
+    update(merged);
+    assertThat(index.getMerges("aaaa", "ds_one", "topic")).isEmpty();
+
+    update(change(3, "ds_one", "topic", "cccc", "1111", "aaaa"));
+    update(change(3, "ds_one", "topic", "dddd", "1111"));
+    assertThat(index.getMerges("aaaa", "ds_one", "topic")).isEmpty();
+
+    update(change(4, "ds_one", "topic", "eeee", "1111", "aaaa"));
+    index.remove(4);
+    assertThat(index.getMerges("aaaa", "ds_one", "topic")).isEmpty();
+  }
+
+  @Test
+  public void refreshTopicTest() throws Exception {
+    update(change(2, "ds_one", "topic", "bbbb", "1111", "aaaa"));
+    update(change(3, "ds_one", "other", "cccc", "2222", "aaaa"));
+    ChangeInfo change = change(4, "ds_one", "topic", "dddd", "3333", "aaaa");
+    index.refreshTopic(
+        "topic",
+        ImmutableList.of(ChangeSummary.of(change, change.revisions.get(change.currentRevision))));
+    assertThat(index.getMerges("aaaa", "ds_one", "topic")).containsExactly(4);
+    assertThat(index.getMerges("aaaa", "ds_one", "other")).containsExactly(3);
+  }
+
+  @Test
+  public void refreshTopicAfterTopicEditTest() throws Exception {
+    update(change(2, "ds_one", "topic", "bbbb", "1111", "aaaa"));
+    update(change(3, "ds_one", "other", "cccc", "2222", "aaaa"));
+    // Moved out of the topic, so refreshing the topic leaves it alone.
+    update(change(2, "ds_one", "moved", "bbbb", "1111", "aaaa"));
+    index.refreshTopic("topic", ImmutableList.of());
+    index.refreshTopic("other", ImmutableList.of());
+    assertThat(index.getMerges("aaaa", "ds_one", "moved")).containsExactly(2);
+    assertThat(index.getMerges("aaaa", "ds_one", "other")).isEmpty();
+  }
+
+  @Test
+  public void verifyTest() throws Exception {
+    update(change(2, "ds_one", "topic", "bbbb", "1111", "aaaa"));
+    update(change(3, "ds_one", "topic", "cccc", "2222", "aaaa"));
+    ChangeInfo open = change(2, "ds_one", "topic", "bbbb", "1111", "aaaa");
+    assertThat(index.verify(open, "aaaa", "ds_one", "topic")).isTrue();
+
+    // Abandoned while its event was missed.
+    ChangeInfo abandoned = change(2, "ds_one", "topic", "bbbb", "1111", "aaaa");
+    abandoned.status = ChangeStatus.ABANDONED;
+    assertThat(index.verify(abandoned, "aaaa", "ds_one", "topic")).isFalse();
+    // Rebased onto another second parent while its event was missed.
+    ChangeInfo rebased = change(3, "ds_one", "topic", "dddd", "2222", "ffff");
+    assertThat(index.verify(rebased, "aaaa", "ds_one", "topic")).isFalse();
+    assertThat(index.getMerges("aaaa", "ds_one", "topic")).isEmpty();
+    assertThat(index.getMerges("ffff", "ds_one", "topic")).containsExactly(3);
+  }
+
+  private void update(ChangeInfo change) {
+    index.update(change, change.revisions.get(change.currentRevision));
+  }
+
+  private static ChangeInfo change(
+      int number, String branch, String topic, String currentRevision, String... parents) {
+    List<CommitInfo> parentCommits = new ArrayList<>();
+    for (String parent : parents) {
+      CommitInfo parentCommit = new CommitInfo();
+      parentCommit.commit = parent;
+      parentCommits.add(parentCommit);
+    }
+    RevisionInfo revision = new RevisionInfo();
+    revision.commit = new CommitInfo();
+    revision.commit.commit = currentRevision;
+    revision.commit.parents = parentCommits;
+
+    ChangeInfo change = new ChangeInfo();
+    change._number = number;
+    change.branch = branch;
+    change.topic = topic;
+    change.status = ChangeStatus.NEW;
+    change.currentRevision = currentRevision;
+    change.revisions = ImmutableMap.of(currentRevision, revision);
+    return change;
+  }
+}
@@ -0,0 +1,296 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.automerger;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class DownstreamWorkQueueTest {
+  private final DownstreamWorkQueue workQueue =
+      new DownstreamWorkQueue(null, new DisabledMetricMaker());
+
+  @After
+  public void tearDown() {
+    workQueue.stop();
+  }
+
+  @Test
+  public void synchronousTest() throws Exception {
+    Thread caller = Thread.currentThread();
+    List<Thread> ranOn = new ArrayList<>();
+    workQueue.submit(1, 0, 10, () -> ranOn.add(Thread.currentThread()));
+    assertThat(ranOn).containsExactly(caller);
+  }
+
+  @Test
+  public void sameChangeInOrderTest() throws Exception {
+    CountDownLatch block = new CountDownLatch(1);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(3);
+    List<String> order = Collections.synchronizedList(new ArrayList<>());
+    workQueue.submit(
+        1,
+        4,
+        10,
+        () -> {
+          started.countDown();
+          await(block);
+          order.add("first");
+          done.countDown();
+        });
+    workQueue.submit(
+        1,
+        4,
+        10,
+        () -> {
+          order.add("second");
+          done.countDown();
+        });
+    workQueue.submit(
+        2,
+        4,
+        10,
+        () -> {
+          order.add("other change");
+          done.countDown();
+        });
+    // The other change is not held up by the first one.
+    assertThat(waitFor(order, 1)).isTrue();
+    assertThat(order).containsExactly("other change");
+    assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(workQueue.getQueueDepth()).isEqualTo(1);
+
+    block.countDown();
+    assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(order).containsExactly("other change", "first", "second").inOrder();
+    assertThat(workQueue.getQueueDepth()).isEqualTo(0);
+  }
+
+  @Test
+  public void fullQueueRunsInlineTest() throws Exception {
+    CountDownLatch block = new CountDownLatch(1);
+    CountDownLatch started = new CountDownLatch(1);
+    workQueue.submit(
+        1,
+        1,
+        1,
+        () -> {
+          started.countDown();
+          await(block);
+        });
+    assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+    // Waits for the only thread.
+    workQueue.submit(2, 1, 1, () -> {});
+    assertThat(workQueue.getQueueDepth()).isEqualTo(1);
+
+    Thread caller = Thread.currentThread();
+    List<Thread> ranOn = new ArrayList<>();
+    workQueue.submit(3, 1, 1, () -> ranOn.add(Thread.currentThread()));
+    assertThat(ranOn).containsExactly(caller);
+    block.countDown();
+  }
+
+  @Test
+  public void fullQueueWaitsForBusyChangeTest() throws Exception {
+    CountDownLatch block = new CountDownLatch(1);
+    CountDownLatch started = new CountDownLatch(1);
+    List<String> order = Collections.synchronizedList(new ArrayList<>());
+    workQueue.submit(
+        1,
+        1,
+        1,
+        () -> {
+          started.countDown();
+          await(block);
+          order.add("first");
+        });
+    assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+    // Waits behind the running task of the same change.
+    workQueue.submit(1, 1, 1, () -> order.add("second"));
+    assertThat(workQueue.getQueueDepth()).isEqualTo(1);
+
+    Thread producer = new Thread(() -> workQueue.submit(1, 1, 1, () -> order.add("third")));
+    producer.start();
+    // Neither overtakes the waiting task nor runs alongside the running one.
+    producer.join(200);
+    assertThat(producer.isAlive()).isTrue();
+    assertThat(order).isEmpty();
+
+    block.countDown();
+    producer.join(10000);
+    assertThat(producer.isAlive()).isFalse();
+    assertThat(waitFor(order, 3)).isTrue();
+    assertThat(order).containsExactly("first", "second", "third").inOrder();
+  }
+
+  @Test
+  public void fullQueueAcceptsOwnWorkTest() throws Exception {
+    CountDownLatch block = new CountDownLatch(1);
+    CountDownLatch started = new CountDownLatch(1);
+    List<String> order = Collections.synchronizedList(new ArrayList<>());
+    workQueue.submit(
+        1,
+        2,
+        1,
+        () -> {
+          started.countDown();
+          await(block);
+          order.add("first");
+        });
+    assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+    workQueue.submit(1, 2, 1, () -> order.add("second"));
+
+    // Runs inline, and queues its follow-up for the busy change without waiting for it.
+    workQueue.submit(2, 2, 1, () -> workQueue.submit(1, 2, 1, () -> order.add("third")));
+    assertThat(workQueue.getQueueDepth()).isEqualTo(2);
+
+    block.countDown();
+    assertThat(waitFor(order, 3)).isTrue();
+    assertThat(order).containsExactly("first", "second", "third").inOrder();
+  }
+
+  @Test
+  public void latestOnlyTest() throws Exception {
+    CountDownLatch done = new CountDownLatch(1);
+    List<String> ran = Collections.synchronizedList(new ArrayList<>());
+    workQueue.submitLatest(1, "merge", 200, 1, 10, () -> ran.add("ps1"));
+    workQueue.submitLatest(1, "merge", 200, 1, 10, () -> ran.add("ps2"));
+    workQueue.submitLatest(
+        1,
+        "merge",
+        200,
+        1,
+        10,
+        () -> {
+          ran.add("ps3");
+          done.countDown();
+        });
+    assertThat(ran).isEmpty();
+    assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(ran).containsExactly("ps3");
+  }
+
+  @Test
+  public void otherEventEndsWindowTest() throws Exception {
+    CountDownLatch done = new CountDownLatch(1);
+    List<String> ran = Collections.synchronizedList(new ArrayList<>());
+    workQueue.submitLatest(1, "merge", 60000, 1, 10, () -> ran.add("ps1"));
+    workQueue.submit(
+        1,
+        1,
+        10,
+        () -> {
+          ran.add("abandon");
+          done.countDown();
+        });
+    assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(ran).containsExactly("ps1", "abandon").inOrder();
+  }
+
+  @Test
+  public void synchronousLatestTest() throws Exception {
+    List<String> ran = new ArrayList<>();
+    // Without threads, nothing could run the work once the window ends.
+    workQueue.submitLatest(1, "merge", 60000, 0, 10, () -> ran.add("ps1"));
+    assertThat(ran).containsExactly("ps1");
+  }
+
+  @Test
+  public void stopRunsDelayedTest() throws Exception {
+    List<String> ran = Collections.synchronizedList(new ArrayList<>());
+    workQueue.submitLatest(1, "merge", 60000, 1, 10, () -> ran.add("ps1"));
+    assertThat(ran).isEmpty();
+    workQueue.stop();
+    assertThat(ran).containsExactly("ps1");
+  }
+
+  @Test
+  public void otherKindEndsWindowTest() throws Exception {
+    CountDownLatch done = new CountDownLatch(1);
+    List<String> ran = Collections.synchronizedList(new ArrayList<>());
+    workQueue.submitLatest(1, "merge", 60000, 1, 10, () -> ran.add("ps1"));
+    workQueue.submitLatest(
+        1,
+        "topic",
+        200,
+        1,
+        10,
+        () -> {
+          ran.add("topic");
+          done.countDown();
+        });
+    assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(ran).containsExactly("ps1", "topic").inOrder();
+  }
+
+  @Test
+  public void invokeAllConcurrentTest() throws Exception {
+    // Each task only finishes once all of them have started.
+    CountDownLatch started = new CountDownLatch(3);
+    List<Callable<String>> tasks = new ArrayList<>();
+    for (String branch : ImmutableList.of("ds_one", "ds_two", "ds_three")) {
+      tasks.add(
+          () -> {
+            started.countDown();
+            return started.await(10, TimeUnit.SECONDS) ? branch : null;
+          });
+    }
+    List<Future<String>> results = workQueue.invokeAll(3, tasks);
+    assertThat(results).hasSize(3);
+    assertThat(results.get(0).get()).isEqualTo("ds_one");
+    assertThat(results.get(1).get()).isEqualTo("ds_two");
+    assertThat(results.get(2).get()).isEqualTo("ds_three");
+  }
+
+  @Test
+  public void invokeAllSerialTest() throws Exception {
+    Thread caller = Thread.currentThread();
+    List<Callable<Thread>> tasks = new ArrayList<>();
+    tasks.add(Thread::currentThread);
+    tasks.add(Thread::currentThread);
+    for (Future<Thread> result : workQueue.invokeAll(1, tasks)) {
+      assertThat(result.get()).isEqualTo(caller);
+    }
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static boolean waitFor(List<String> list, int size) throws InterruptedException {
+    for (int i = 0; i < 1000 && list.size() < size; i++) {
+      Thread.sleep(10);
+    }
+    return list.size() >= size;
+  }
+}
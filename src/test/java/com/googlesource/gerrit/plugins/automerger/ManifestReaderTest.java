@@ -18,23 +18,23 @@ import static com.google.common.truth.Truth.assertThat;
 
 import com.google.common.base.Charsets;
 import com.google.common.io.CharStreams;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.HashSet;
+import java.util.Optional;
 import java.util.Set;
+import javax.xml.stream.XMLStreamException;
 import org.junit.Before;
 import org.junit.Test;
 
 public class ManifestReaderTest {
-  private ManifestReader manifestReader;
   private String manifestString;
 
   @Before
   public void setUp() throws Exception {
-    try (InputStream in = getClass().getResourceAsStream("default.xml")) {
-      manifestString = CharStreams.toString(new InputStreamReader(in, Charsets.UTF_8));
-    }
-    manifestReader = new ManifestReader("master", manifestString);
+    manifestString = readResource("default.xml");
   }
 
   @Test
@@ -42,14 +42,169 @@ public class ManifestReaderTest {
     Set<String> expectedSet = new HashSet<>();
     expectedSet.add("platform/whee");
     expectedSet.add("whoo");
-    assertThat(manifestReader.getProjects()).isEqualTo(expectedSet);
+    assertThat(streamingProjects("master", manifestString)).isEqualTo(expectedSet);
   }
 
   @Test
   public void branchDifferentFromDefaultRevisionTest() throws Exception {
-    ManifestReader aospManifestReader = new ManifestReader("mirror-aosp-master", manifestString);
     Set<String> expectedSet = new HashSet<>();
     expectedSet.add("platform/whaa");
-    assertThat(aospManifestReader.getProjects()).isEqualTo(expectedSet);
+    assertThat(streamingProjects("mirror-aosp-master", manifestString)).isEqualTo(expectedSet);
+  }
+
+  @Test
+  public void downstreamManifestsTest() throws Exception {
+    assertThat(streamingProjects("ds_one", readResource("ds_one.xml")))
+        .containsExactly("platform/whee", "whoo");
+    assertThat(streamingProjects("ds_two", readResource("ds_two.xml")))
+        .containsExactly("platform/whee", "whuu");
+    assertThat(streamingProjects("master", readResource("ds_two.xml"))).isEmpty();
+  }
+
+  @Test
+  public void stringMatchesStreamTest() throws Exception {
+    assertThat(new ManifestReader("master", manifestString).getProjects())
+        .isEqualTo(streamingProjects("master", manifestString));
+  }
+
+  @Test
+  public void streamingDefaultAfterProjectsTest() throws Exception {
+    String contents =
+        "<manifest>\n"
+            + "  <project name=\"whee\" />\n"
+            + "  <project name=\"whaa\" revision=\"mirror-aosp-master\" />\n"
+            + "  <default revision=\"master\" />\n"
+            + "</manifest>";
+    assertThat(streamingProjects("master", contents)).containsExactly("whee");
+  }
+
+  @Test
+  public void streamingNoDefaultTest() throws Exception {
+    String contents =
+        "<manifest>\n"
+            + "  <project name=\"whee\" />\n"
+            + "  <project name=\"whaa\" revision=\"master\" />\n"
+            + "</manifest>";
+    assertThat(streamingProjects("master", contents)).containsExactly("whaa");
+  }
+
+  @Test
+  public void streamingRemoveAndExtendProjectTest() throws Exception {
+    String contents =
+        "<manifest>\n"
+            + "  <default revision=\"master\" />\n"
+            + "  <project name=\"whee\" />\n"
+            + "  <project name=\"whaa\" />\n"
+            + "  <project name=\"whuu\" />\n"
+            + "  <extend-project name=\"whee\" revision=\"ds_one\" />\n"
+            + "  <remove-project name=\"whaa\" />\n"
+            + "</manifest>";
+    assertThat(streamingProjects("master", contents)).containsExactly("whuu");
+    assertThat(streamingProjects("ds_one", contents)).containsExactly("whee");
+  }
+
+  @Test
+  public void streamingMalformedManifestTest() throws Exception {
+    assertThat(streamingProjects("master", "<manifest><default revision=\"master\" />"))
+        .isEmpty();
+  }
+
+  @Test
+  public void resolveIncludesTest() throws Exception {
+    ManifestFragment manifest = parseResource("include.xml");
+    ManifestReader.IncludeLoader loader =
+        name ->
+            "base.xml".equals(name)
+                ? Optional.of(parseResource("default.xml"))
+                : Optional.empty();
+    assertThat(ManifestReader.resolveProjects("master", "include.xml", manifest, loader))
+        .containsExactly("platform/whee", "whuu");
+    assertThat(ManifestReader.resolveProjects("ds_two", "include.xml", manifest, loader))
+        .containsExactly("platform/whaa");
+    assertThat(
+            ManifestReader.resolveProjects("mirror-aosp-master", "include.xml", manifest, loader))
+        .isEmpty();
+  }
+
+  @Test
+  public void resolveMissingIncludeTest() throws Exception {
+    assertThat(
+            ManifestReader.resolveProjects(
+                "master", "include.xml", parseResource("include.xml"), name -> Optional.empty()))
+        .isEmpty();
+  }
+
+  @Test
+  public void resolveIncludeCycleTest() throws Exception {
+    ManifestFragment manifest = parseResource("include_cycle.xml");
+    assertThat(
+            ManifestReader.resolveProjects(
+                "master", "include_cycle.xml", manifest, name -> Optional.of(manifest)))
+        .containsExactly("platform/whee");
+  }
+
+  @Test
+  public void resolveIncludeOfRootTest() throws Exception {
+    ManifestFragment root =
+        parse(
+            "<manifest>\n"
+                + "  <default revision=\"master\" />\n"
+                + "  <project name=\"whee\" />\n"
+                + "  <include name=\"child.xml\" />\n"
+                + "</manifest>");
+    ManifestFragment child =
+        parse(
+            "<manifest>\n"
+                + "  <extend-project name=\"whee\" revision=\"ds_one\" />\n"
+                + "  <include name=\"default.xml\" />\n"
+                + "</manifest>");
+    ManifestReader.IncludeLoader loader =
+        name -> Optional.of("child.xml".equals(name) ? child : root);
+    // The root is applied once, so the project it lists is not added back at its old revision.
+    assertThat(ManifestReader.resolveProjects("master", "default.xml", root, loader)).isEmpty();
+    assertThat(ManifestReader.resolveProjects("ds_one", "default.xml", root, loader))
+        .containsExactly("whee");
+  }
+
+  @Test
+  public void resolveRemoveAndExtendProjectTest() throws Exception {
+    ManifestFragment manifest =
+        parse(
+            "<manifest>\n"
+                + "  <default revision=\"master\" />\n"
+                + "  <project name=\"whee\" path=\"a\" />\n"
+                + "  <project name=\"whee\" path=\"b\" />\n"
+                + "  <project name=\"whaa\" />\n"
+                + "  <project name=\"whuu\" />\n"
+                + "  <extend-project name=\"whee\" revision=\"ds_one\" />\n"
+                + "  <remove-project name=\"whaa\" />\n"
+                + "</manifest>");
+    assertThat(ManifestReader.resolveProjects("master", null, manifest, null))
+        .containsExactly("whuu");
+    assertThat(ManifestReader.resolveProjects("ds_one", null, manifest, null))
+        .containsExactly("whee");
+  }
+
+  private Set<String> streamingProjects(String branch, String contents) {
+    return new ManifestReader(branch, new ByteArrayInputStream(contents.getBytes(Charsets.UTF_8)))
+        .getProjects();
+  }
+
+  private ManifestFragment parseResource(String name) throws IOException {
+    try (InputStream in = getClass().getResourceAsStream(name)) {
+      return ManifestFragment.parse(in);
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static ManifestFragment parse(String contents) throws Exception {
+    return ManifestFragment.parse(new ByteArrayInputStream(contents.getBytes(Charsets.UTF_8)));
+  }
+
+  private String readResource(String name) throws Exception {
+    try (InputStream in = getClass().getResourceAsStream(name)) {
+      return CharStreams.toString(new InputStreamReader(in, Charsets.UTF_8));
+    }
   }
 }
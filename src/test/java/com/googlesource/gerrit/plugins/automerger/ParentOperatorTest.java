@@ -0,0 +1,46 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.automerger;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+
+import com.google.gerrit.index.query.QueryParseException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ParentOperatorTest {
+  private final ParentOperator operator = new ParentOperator("automerger", null);
+
+  @Test
+  public void nameTest() throws Exception {
+    assertThat(operator.getName()).isEqualTo("parent_automerger");
+  }
+
+  @Test
+  public void predicateTest() throws Exception {
+    String sha = "0123456789abcdef0123456789abcdef01234567";
+    assertThat(operator.create(null, sha).toString()).isEqualTo("parent_automerger:" + sha);
+  }
+
+  @Test
+  public void abbreviatedShaTest() throws Exception {
+    QueryParseException thrown =
+        assertThrows(QueryParseException.class, () -> operator.create(null, "0123456"));
+    assertThat(thrown).hasMessageThat().contains("parent_automerger");
+  }
+}
@@ -0,0 +1,88 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.automerger;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ProjectSetTest {
+  private ProjectDictionary dictionary;
+
+  @Before
+  public void setUp() throws Exception {
+    dictionary = new ProjectDictionary();
+    // Spread ids over several words.
+    for (int i = 0; i < 200; i++) {
+      dictionary.intern("filler/" + i);
+    }
+  }
+
+  @Test
+  public void internTest() throws Exception {
+    int id = dictionary.intern("platform/whee");
+    assertThat(dictionary.intern("platform/whee")).isEqualTo(id);
+    assertThat(dictionary.getId("platform/whee")).isEqualTo(id);
+    assertThat(dictionary.getName(id)).isEqualTo("platform/whee");
+    assertThat(dictionary.getId("platform/unknown")).isEqualTo(-1);
+  }
+
+  @Test
+  public void containsTest() throws Exception {
+    ProjectSet set = of("platform/whee", "whoo");
+    assertThat(set.contains("whoo")).isTrue();
+    assertThat(set.contains("filler/3")).isFalse();
+    assertThat(set.contains("platform/unknown")).isFalse();
+    assertThat(set.size()).isEqualTo(2);
+    assertThat(set.toNames()).containsExactly("platform/whee", "whoo");
+  }
+
+  @Test
+  public void setOperationsTest() throws Exception {
+    ProjectSet from = of("platform/whee", "whoo", "filler/7");
+    ProjectSet to = of("platform/whee", "whuu", "filler/7");
+    assertThat(from.and(to).toNames()).containsExactly("platform/whee", "filler/7");
+    assertThat(from.or(to).toNames())
+        .containsExactly("platform/whee", "whoo", "whuu", "filler/7");
+    assertThat(from.andNot(to).toNames()).containsExactly("whoo");
+  }
+
+  @Test
+  public void emptyResultsTest() throws Exception {
+    ProjectSet set = of("whoo", "filler/150");
+    assertThat(set.andNot(set)).isSameInstanceAs(ProjectSet.EMPTY);
+    assertThat(set.and(of("whuu"))).isSameInstanceAs(ProjectSet.EMPTY);
+    assertThat(ProjectSet.EMPTY.or(set)).isSameInstanceAs(set);
+    assertThat(ProjectSet.EMPTY.contains("whoo")).isFalse();
+    assertThat(ProjectSet.EMPTY.toNames()).isEmpty();
+  }
+
+  @Test
+  public void equalsIgnoresTrailingWordsTest() throws Exception {
+    ProjectSet small = of("filler/1");
+    ProjectSet trimmed = of("filler/1", "filler/199").andNot(of("filler/199"));
+    assertThat(trimmed).isEqualTo(small);
+    assertThat(trimmed.estimateHeapBytes()).isEqualTo(small.estimateHeapBytes());
+  }
+
+  private ProjectSet of(String... projects) {
+    return ProjectSet.of(dictionary, ImmutableList.copyOf(projects));
+  }
+}
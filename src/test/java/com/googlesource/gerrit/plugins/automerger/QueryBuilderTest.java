@@ -17,6 +17,7 @@ package com.googlesource.gerrit.plugins.automerger;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.gerrit.testing.GerritJUnit.assertThrows;
 
+import com.google.common.collect.ImmutableList;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -62,6 +63,15 @@ public class QueryBuilderTest {
     assertThat(queryBuilder.get()).isEqualTo("branch:\"master\"");
   }
 
+  @Test
+  public void removeParameterReturnsEscapedValueTest() throws Exception {
+    queryBuilder.addParameter("topic", "topic\"with\"quotes");
+    queryBuilder.addParameterGroup("branch", ImmutableList.of("ds_one", "ds_two"));
+    assertThat(queryBuilder.removeParameter("topic")).isEqualTo("{topic\"with\"quotes}");
+    assertThat(queryBuilder.removeParameter("branch")).isNull();
+    assertThat(queryBuilder.get()).isEmpty();
+  }
+
   @Test
   public void escapeQuoteTest() throws Exception {
     queryBuilder.addParameter("topic", "topic\"with\"quotes");
@@ -84,4 +94,34 @@ public class QueryBuilderTest {
         .hasMessageThat()
         .contains("Gerrit does not support both quotes and braces in a query.");
   }
+
+  @Test
+  public void parameterGroupTest() throws Exception {
+    queryBuilder.addParameterGroup("branch", ImmutableList.of("ds_one", "ds_two"));
+    assertThat(queryBuilder.get()).isEqualTo("(branch:\"ds_one\" OR branch:\"ds_two\")");
+  }
+
+  @Test
+  public void singleParameterGroupTest() throws Exception {
+    queryBuilder.addParameterGroup("branch", ImmutableList.of("ds_one"));
+    assertThat(queryBuilder.get()).isEqualTo("branch:\"ds_one\"");
+  }
+
+  @Test
+  public void escapeParameterGroupTest() throws Exception {
+    queryBuilder.addParameterGroup("topic", ImmutableList.of("with\"quotes", "with{braces}"));
+    assertThat(queryBuilder.get())
+        .isEqualTo("(topic:{with\"quotes} OR topic:\"with{braces}\")");
+  }
+
+  @Test
+  public void emptyParameterGroupTest() throws Exception {
+    InvalidQueryParameterException thrown =
+        assertThrows(
+            InvalidQueryParameterException.class,
+            () -> queryBuilder.addParameterGroup("branch", ImmutableList.of()));
+    assertThat(thrown)
+        .hasMessageThat()
+        .contains("Cannot use null key or null or empty values for query.");
+  }
 }
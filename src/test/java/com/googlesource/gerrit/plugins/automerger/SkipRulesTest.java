@@ -0,0 +1,77 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.automerger;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+
+import com.google.common.collect.ImmutableList;
+import com.google.re2j.PatternSyntaxException;
+import com.googlesource.gerrit.plugins.automerger.SkipRules.Match;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class SkipRulesTest {
+  private final SkipRules skipRules =
+      SkipRules.compile(
+          ImmutableList.of(".*Import translations. DO NOT MERGE.*", ".*DO NOT MERGE ANYWHERE.*"),
+          ImmutableList.of(".*DO NOT MERGE.*"));
+
+  @Test
+  public void noMatchTest() throws Exception {
+    assertThat(skipRules.match("bla")).isEqualTo(Match.NONE);
+  }
+
+  @Test
+  public void blankMergeTest() throws Exception {
+    assertThat(skipRules.match("test test \n \n DO NOT MERGE lala")).isEqualTo(Match.BLANK_MERGE);
+  }
+
+  @Test
+  public void alwaysBlankMergeWinsTest() throws Exception {
+    assertThat(skipRules.match("test test \n \n DO NOT MERGE ANYWHERE"))
+        .isEqualTo(Match.ALWAYS_BLANK_MERGE);
+  }
+
+  @Test
+  public void wholeMessageMustMatchTest() throws Exception {
+    SkipRules anchored = SkipRules.compile(ImmutableList.of("BLANK"), ImmutableList.of("SKIP"));
+    assertThat(anchored.match("BLANK and more")).isEqualTo(Match.NONE);
+    assertThat(anchored.match("SKIP")).isEqualTo(Match.BLANK_MERGE);
+  }
+
+  @Test
+  public void capturingGroupsInRulesTest() throws Exception {
+    SkipRules grouped =
+        SkipRules.compile(ImmutableList.of("(a|b)+"), ImmutableList.of("(c)(d)?"));
+    assertThat(grouped.match("abab")).isEqualTo(Match.ALWAYS_BLANK_MERGE);
+    assertThat(grouped.match("cd")).isEqualTo(Match.BLANK_MERGE);
+  }
+
+  @Test
+  public void emptyRulesOnlyMatchEmptyMessageTest() throws Exception {
+    SkipRules empty = SkipRules.compile(ImmutableList.of(), ImmutableList.of());
+    assertThat(empty.match("DO NOT MERGE")).isEqualTo(Match.NONE);
+    assertThat(empty.match("")).isEqualTo(Match.ALWAYS_BLANK_MERGE);
+  }
+
+  @Test
+  public void invalidRuleTest() throws Exception {
+    SkipRules invalid = SkipRules.compile(ImmutableList.of("(unclosed"), ImmutableList.of());
+    assertThrows(PatternSyntaxException.class, () -> invalid.match("bla"));
+  }
+}
@@ -0,0 +1,110 @@
+// Copyright (C) 2019 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.automerger;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.extensions.client.ChangeStatus;
+import java.util.Arrays;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TopicChangesTest {
+  private final ChangeSummary upstream = change(1, "master", "aaaa", "0000");
+  private final ChangeSummary dsOne = change(2, "ds_one", "bbbb", "1111", "aaaa");
+  private final ChangeSummary dsTwo = change(3, "ds_two", "cccc", "2222", "aaaa");
+  private final ChangeSummary dsOneAgain = change(4, "ds_one", "dddd", "3333", "aaaa");
+  private final TopicChanges changes =
+      TopicChanges.of(ImmutableList.of(upstream, dsOne, dsTwo, dsOneAgain));
+
+  @Test
+  public void mergesByBranchTest() throws Exception {
+    assertThat(changes.getMerges("aaaa", "ds_one")).containsExactly(dsOne, dsOneAgain).inOrder();
+    assertThat(changes.getMerges("aaaa", "ds_two")).containsExactly(dsTwo);
+    assertThat(changes.getMerges("aaaa", "ds_three")).isEmpty();
+  }
+
+  @Test
+  public void firstParentIsNotAMergeTest() throws Exception {
+    assertThat(changes.getMerges("1111", "ds_one")).isEmpty();
+    assertThat(changes.getMerges("0000", "master")).isEmpty();
+  }
+
+  @Test
+  public void byCurrentRevisionTest() throws Exception {
+    assertThat(changes.getByCurrentRevision("aaaa")).isSameInstanceAs(upstream);
+    assertThat(changes.getByCurrentRevision("cccc")).isSameInstanceAs(dsTwo);
+    assertThat(changes.getByCurrentRevision("eeee")).isNull();
+  }
+
+  @Test
+  public void allChangesTest() throws Exception {
+    assertThat(changes.getChanges()).containsExactly(upstream, dsOne, dsTwo, dsOneAgain).inOrder();
+  }
+
+  @Test
+  public void pagesTest() throws Exception {
+    TopicChanges paged = new TopicChanges();
+    paged.add(ImmutableList.of(upstream, dsOne), true);
+    assertThat(paged.isComplete()).isFalse();
+    assertThat(paged.hasMore()).isTrue();
+    assertThat(paged.getByCurrentRevision("cccc")).isNull();
+
+    // dsOne was updated and moved to the second page too.
+    paged.add(ImmutableList.of(dsOne, dsTwo, dsOneAgain), false);
+    assertThat(paged.hasMore()).isFalse();
+    assertThat(paged.getRead()).isEqualTo(5);
+    assertThat(paged.getByCurrentRevision("cccc")).isSameInstanceAs(dsTwo);
+    assertThat(paged.getMerges("aaaa", "ds_one")).containsExactly(dsOne, dsOneAgain).inOrder();
+    // Only the last page is kept.
+    assertThat(paged.getByCurrentRevision("aaaa")).isNull();
+    assertThat(paged.getChanges()).containsExactly(dsOne, dsTwo, dsOneAgain).inOrder();
+  }
+
+  @Test
+  public void onlySinglePageIsCompleteTest() throws Exception {
+    assertThat(changes.isComplete()).isTrue();
+
+    // An update between the pages may have shifted a change past the start of the second one.
+    TopicChanges paged = new TopicChanges();
+    paged.add(ImmutableList.of(upstream, dsOne), true);
+    paged.add(ImmutableList.of(dsOneAgain), false);
+    assertThat(paged.isComplete()).isFalse();
+  }
+
+  @Test
+  public void continueAfterTest() throws Exception {
+    TopicChanges first = new TopicChanges();
+    first.add(ImmutableList.of(upstream, dsOne), true);
+    TopicChanges rest = new TopicChanges(first);
+    assertThat(rest.getRead()).isEqualTo(2);
+    assertThat(rest.hasMore()).isTrue();
+    assertThat(rest.getChanges()).isEmpty();
+
+    rest.add(ImmutableList.of(dsTwo), false);
+    assertThat(rest.isComplete()).isFalse();
+    // The first page is left as it was, for other lookups to share.
+    assertThat(first.getChanges()).containsExactly(upstream, dsOne).inOrder();
+  }
+
+  private static ChangeSummary change(
+      int number, String branch, String currentRevision, String... parents) {
+    return new ChangeSummary(
+        number, branch, "topic", ChangeStatus.NEW, currentRevision, Arrays.asList(parents));
+  }
+}